@@ -0,0 +1,216 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Tag the sentences of a file on several threads, writing the tags in the same order as the sentences
+ * Works as a pipeline: a reader thread cuts the input into batches, a pool of decoders tags them, and the calling
+ * thread writes them back in order. The stages are joined by bounded queues, so reading, decoding and writing
+ * overlap while only a fixed number of batches is ever in memory, however big the file
+ * The decoder has to be safe to call from several threads at once
+ */
+
+public class BatchTagger {
+    // number of sentences read and decoded together
+    public static final int BATCH_SIZE = 256;
+
+    // batches allowed in flight per decoder, between being read and being written
+    public static final int BATCHES_PER_WORKER = 4;
+
+    // size of the buffers on both ends of a pipe, in characters
+    public static final int PIPE_BUFFER = 1 << 16;
+
+    // marks the end of the input in both queues
+    private static final Batch END = new Batch(0);
+
+    /**
+     * Sentences of the input, replaced by their tags once decoded
+     */
+    private static class Batch {
+        final String[] lines;
+        int size;
+
+        // counted down once the batch is decoded, or once decoding failed with whatever was thrown
+        final CountDownLatch decoded = new CountDownLatch(1);
+        Throwable error;
+
+        Batch(int capacity){
+            lines = new String[capacity];
+        }
+    }
+
+    /**
+     * @param input sentences, one per line
+     * @param output where to write the tags of every sentence, one line per sentence in input order
+     * @param decoder gives the tags of a sentence
+     * @param workers number of threads to decode with
+     * @throws IOException if reading or writing fails, or if the writer is interrupted
+     */
+    public static void tag(BufferedReader input, BufferedWriter output, UnaryOperator<String> decoder, int workers) throws IOException {
+        int capacity = workers * BATCHES_PER_WORKER;
+
+        // batches waiting for a decoder, and every batch in the order it was read, waiting for the writer
+        // a batch goes into inOrder first, so inOrder being full is what stops the reader
+        BlockingQueue<Batch> toDecode = new ArrayBlockingQueue<>(capacity + workers);
+        BlockingQueue<Batch> inOrder = new ArrayBlockingQueue<>(capacity + 1);
+
+        // where the reader leaves a failure for the writer
+        IOException[] readError = new IOException[1];
+
+        ExecutorService threads = Executors.newFixedThreadPool(workers + 1);
+        try {
+            threads.execute(() -> read(input, toDecode, inOrder, workers, readError));
+            for (int i = 0; i < workers; i++) {
+                threads.execute(() -> decode(toDecode, decoder));
+            }
+
+            // write the batches as they were read, waiting for each to be decoded
+            while (true) {
+                Batch batch = inOrder.take();
+                if (batch == END) {
+                    break;
+                }
+                batch.decoded.await();
+                if (batch.error instanceof RuntimeException) {
+                    throw (RuntimeException) batch.error;
+                }
+                if (batch.error instanceof Error) {
+                    throw (Error) batch.error;
+                }
+                if (batch.error != null) {
+                    throw new IOException("Cannot tag sentence.", batch.error);
+                }
+                for (int i = 0; i < batch.size; i++) {
+                    output.write(batch.lines[i]);
+                    output.write('\n');
+                }
+            }
+            if (readError[0] != null) {
+                throw readError[0];
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while tagging.");
+        }
+        finally {
+            // stops the reader and decoders if the writer gave up early
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Tag a stream of sentences for a shell pipeline, with large buffers on both ends and nothing but results written
+     * @param in sentences, one per line, in UTF-8
+     * @param out where to write one line per sentence in input order, in UTF-8, flushed at the end but not closed
+     * @param decoder gives the tags of a sentence
+     * @param wordTags whether to write every word with its tag, word/TAG, instead of the tags alone
+     * @param workers number of threads to decode with, 1 decodes on the calling thread
+     * @throws IOException if reading or writing fails, for instance once the next command of the pipeline exits
+     */
+    public static void pipe(InputStream in, OutputStream out, UnaryOperator<String> decoder, boolean wordTags, int workers) throws IOException {
+        BufferedReader input = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), PIPE_BUFFER);
+        BufferedWriter output = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), PIPE_BUFFER);
+        UnaryOperator<String> lineDecoder = wordTags ? sentence -> withTags(sentence, decoder.apply(sentence)) : decoder;
+
+        if (workers > 1) {
+            tag(input, output, lineDecoder, workers);
+        }
+        else {
+            String sentence;
+            while ((sentence = input.readLine()) != null) {
+                output.write(lineDecoder.apply(sentence));
+                output.write('\n');
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * @param sentence a sentence
+     * @param tags its tags, one per word
+     * @return every word of the sentence followed by its tag, word/TAG, separated by spaces
+     */
+    public static String withTags(String sentence, String tags){
+        String[] words = sentence.split(" ");
+        String[] wordTags = tags.split(" ");
+        StringBuilder result = new StringBuilder(sentence.length() + tags.length() + words.length);
+        for (int i = 0; i < words.length; i++) {
+            if (i > 0) {
+                result.append(' ');
+            }
+            result.append(words[i]).append('/').append(i < wordTags.length ? wordTags[i] : "");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Reader stage, cut the input into batches and queue them for the decoders and the writer
+     * @param input sentences, one per line
+     * @param toDecode queue of the decoders
+     * @param inOrder queue of the writer
+     * @param workers number of decoders, each gets an END
+     * @param readError where to leave an IOException for the writer
+     */
+    private static void read(BufferedReader input, BlockingQueue<Batch> toDecode, BlockingQueue<Batch> inOrder,
+                             int workers, IOException[] readError){
+        try {
+            try {
+                while (true) {
+                    Batch batch = new Batch(BATCH_SIZE);
+                    String sentence;
+                    while (batch.size < BATCH_SIZE && (sentence = input.readLine()) != null) {
+                        batch.lines[batch.size++] = sentence;
+                    }
+                    if (batch.size == 0) {
+                        break;
+                    }
+                    inOrder.put(batch);
+                    toDecode.put(batch);
+                    if (batch.size < BATCH_SIZE) {
+                        break;
+                    }
+                }
+            }
+            catch (IOException e) {
+                readError[0] = e;
+            }
+            for (int i = 0; i < workers; i++) {
+                toDecode.put(END);
+            }
+            inOrder.put(END);
+        }
+        catch (InterruptedException e) {
+            // the writer stopped, nobody is waiting for the rest
+        }
+    }
+
+    /**
+     * Decoder stage, tag batches until the END of the input
+     * @param toDecode queue of the decoders
+     * @param decoder gives the tags of a sentence
+     */
+    private static void decode(BlockingQueue<Batch> toDecode, UnaryOperator<String> decoder){
+        try {
+            Batch batch;
+            while ((batch = toDecode.take()) != END) {
+                try {
+                    for (int i = 0; i < batch.size; i++) {
+                        batch.lines[i] = decoder.apply(batch.lines[i]);
+                    }
+                }
+                catch (Throwable e) {
+                    batch.error = e;
+                }
+                finally {
+                    // the writer waits for every batch, whatever happened to it
+                    batch.decoded.countDown();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // the writer stopped, nobody is waiting for the rest
+        }
+    }
+}
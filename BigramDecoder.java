@@ -0,0 +1,289 @@
+import java.util.*;
+
+/**
+ * Viterbi decoding of a sentence over an int-indexed bigram model, using flat score arrays instead of maps
+ * Every array comes from the calling thread's DecoderWorkspace, so steady-state decoding doesn't allocate per word
+ */
+
+public class BigramDecoder {
+    /**
+     * @param model compiled or memory-mapped model to decode with
+     * @param sentence a string of words to be tagged
+     * @return a string with a tag for each corresponding word in the sentence
+     */
+    public static String decode(TaggerModel model, String sentence){
+        return decode(model, sentence, false);
+    }
+
+    /**
+     * @param model compiled or memory-mapped model to decode with
+     * @param sentence a string of words to be tagged
+     * @param prune whether to only expand the tags a known word was seen with, or the open class tags for unknown words
+     * @return a string with a tag for each corresponding word in the sentence
+     */
+    public static String decode(TaggerModel model, String sentence, boolean prune){
+        int numTags = model.numTags();
+
+        sentence = sentence.toLowerCase();
+
+        // find the words in place and make sure the workspace can hold the whole sentence
+        DecoderWorkspace workspace = DecoderWorkspace.get();
+        workspace.split(sentence);
+        int numWords = workspace.numWords;
+        workspace.ensureCapacity(numTags, numWords);
+
+        // score of every tag in the current state, negative infinity if the tag can't be reached
+        // current state starts at the start of the sentence #
+        double[] currentState = workspace.currentState;
+        double[] nextState = workspace.nextState;
+        Arrays.fill(currentState, 0, numTags, Double.NEGATIVE_INFINITY);
+        currentState[model.startTag()] = 0.0;
+
+        // for every word, the tag in the previous state that every tag came from
+        int[][] backTrack = workspace.backTrack;
+
+        for (int w = 0; w < numWords; w++) {
+            advance(model, sentence, workspace, w, prune, currentState, nextState, backTrack[w]);
+
+            // advance through the words by swapping current and next
+            double[] temp = currentState;
+            currentState = nextState;
+            nextState = temp;
+        }
+
+        /*
+         * Back Tracking on entire sentence:
+         *
+         * 1st find out what the best probability is on the last state
+         * Then, march back through the backtrack matrix to find the path that produced it
+         */
+        int bestProbabilityTag = 0;
+        for (int tag = 1; tag < numTags; tag++) {
+            if (currentState[tag] > currentState[bestProbabilityTag]) {
+                bestProbabilityTag = tag;
+            }
+        }
+
+        int[] path = workspace.path;
+        int nextTag = bestProbabilityTag;
+        for (int w = numWords - 1; w >= 0; w--) {
+            path[w] = nextTag;
+            nextTag = backTrack[w][nextTag];
+        }
+
+        // write the tags in order into the reused buffer
+        StringBuilder decodedTags = workspace.result;
+        decodedTags.setLength(0);
+        for (int w = 0; w < numWords; w++) {
+            if (w > 0) {
+                decodedTags.append(' ');
+            }
+            decodedTags.append(model.tagName(path[w]));
+        }
+
+        return decodedTags.toString();
+    }
+
+    /**
+     * Same as decode, but resuming from the longest prefix of the sentence found in a cache, and caching the
+     * column of every word decoded, so a sentence typed one word at a time only decodes the new words
+     * @param model compiled or memory-mapped model to decode with
+     * @param sentence a string of words to be tagged
+     * @param prune whether to only expand the tags a known word was seen with, or the open class tags for unknown words
+     * @param cache columns of the prefixes decoded lately, null to decode the whole sentence
+     * @return a string with a tag for each corresponding word in the sentence
+     */
+    public static String decode(TaggerModel model, String sentence, boolean prune, PrefixCache cache){
+        if (cache == null) {
+            return decode(model, sentence, prune);
+        }
+        PrefixCache.Column column = forward(model, sentence, prune, cache);
+        DecoderWorkspace workspace = DecoderWorkspace.get();
+
+        // best tag on the last column, then back through the columns of the shorter prefixes
+        int nextTag = 0;
+        for (int tag = 1; tag < model.numTags(); tag++) {
+            if (column.scores[tag] > column.scores[nextTag]) {
+                nextTag = tag;
+            }
+        }
+        int[] path = workspace.path;
+        for (PrefixCache.Column c = column; c.previous != null; c = c.previous) {
+            path[c.numWords - 1] = nextTag;
+            nextTag = c.backTrack[nextTag];
+        }
+
+        // write the tags in order into the reused buffer
+        StringBuilder decodedTags = workspace.result;
+        decodedTags.setLength(0);
+        for (int w = 0; w < column.numWords; w++) {
+            if (w > 0) {
+                decodedTags.append(' ');
+            }
+            decodedTags.append(model.tagName(path[w]));
+        }
+
+        return decodedTags.toString();
+    }
+
+    /**
+     * Run the forward pass over a sentence, resuming from the longest prefix of it found in a cache
+     * @param model compiled or memory-mapped model to decode with
+     * @param sentence a string of words
+     * @param prune whether to only expand the tags a known word was seen with, or the open class tags for unknown words
+     * @param cache columns of the prefixes decoded lately, null to run over the whole sentence without caching
+     * @return the column after the last word, its arrays must not be modified
+     */
+    public static PrefixCache.Column forward(TaggerModel model, String sentence, boolean prune, PrefixCache cache){
+        int numTags = model.numTags();
+
+        sentence = sentence.toLowerCase();
+
+        DecoderWorkspace workspace = DecoderWorkspace.get();
+        workspace.split(sentence);
+        int numWords = workspace.numWords;
+        workspace.ensureCapacity(numTags, numWords);
+
+        // the longest prefix already decoded, checking the longest first since most calls only add a word
+        PrefixCache.Column column = null;
+        for (int w = numWords; w > 0 && column == null && cache != null; w--) {
+            column = cache.get(model, prune, sentence.substring(0, workspace.wordEnds[w - 1]));
+        }
+        if (column == null) {
+            // start of the sentence #
+            double[] start = new double[numTags];
+            Arrays.fill(start, Double.NEGATIVE_INFINITY);
+            start[model.startTag()] = 0.0;
+            column = new PrefixCache.Column(null, start, null);
+        }
+
+        // the cached columns are shared, so every new word gets arrays of its own
+        for (int w = column.numWords; w < numWords; w++) {
+            double[] nextState = new double[numTags];
+            int[] stateBackTrack = new int[numTags];
+            advance(model, sentence, workspace, w, prune, column.scores, nextState, stateBackTrack);
+            column = new PrefixCache.Column(column, nextState, stateBackTrack);
+            if (cache != null) {
+                cache.put(model, prune, sentence.substring(0, workspace.wordEnds[w]), column);
+            }
+        }
+        return column;
+    }
+
+    /**
+     * Score every tag of the next word, from the scores of the current one
+     * @param model model to decode with
+     * @param sentence lower case sentence
+     * @param workspace workspace the sentence was split with
+     * @param w index of the word to decode
+     * @param prune whether to only expand the candidate tags of the word
+     * @param currentState score of every tag in the current state
+     * @param nextState array to fill with the score of every tag once the word is observed
+     * @param stateBackTrack array to fill with the current tag every next tag came from
+     */
+    private static void advance(TaggerModel model, String sentence, DecoderWorkspace workspace, int w, boolean prune,
+                                double[] currentState, double[] nextState, int[] stateBackTrack){
+        int numTags = model.numTags();
+
+        // probability that the word being decoded is of type tag, for every tag
+        // the observation only depends on the next tag, so scatter the word's row once per word
+        double[] observations = workspace.observations;
+        model.observationScores(sentence, workspace.wordStarts[w], workspace.wordEnds[w], observations);
+
+        // when pruning, only expand the candidate tags of the word, unless none of them can be reached
+        boolean reached = false;
+        if (prune) {
+            int numCandidates = model.candidateTags(sentence, workspace.wordStarts[w], workspace.wordEnds[w], workspace.candidates);
+            reached = expandCandidates(model, currentState, nextState, stateBackTrack, workspace.candidates, numCandidates);
+        }
+        if (!reached) {
+            expandAll(model, currentState, nextState, stateBackTrack);
+        }
+
+        // add the observation of the word to every reachable tag
+        for (int next = 0; next < numTags; next++) {
+            if (nextState[next] != Double.NEGATIVE_INFINITY) {
+                nextState[next] += observations[next];
+            }
+        }
+    }
+
+    /**
+     * Compute the best score of every next tag coming from any reachable current tag
+     * @param model model to decode with
+     * @param currentState score of every tag in the current state
+     * @param nextState array to fill with the best score of every tag in the next state, before the observation
+     * @param stateBackTrack array to fill with the current tag every next tag came from
+     */
+    private static void expandAll(TaggerModel model, double[] currentState, double[] nextState, int[] stateBackTrack){
+        int numTags = model.numTags();
+        Arrays.fill(nextState, 0, numTags, Double.NEGATIVE_INFINITY);
+
+        // a compiled model has every row of transitions in an array, so each row is one max-plus update
+        if (model instanceof DenseModel) {
+            double[][] transitions = ((DenseModel) model).transitions;
+            MaxPlus maxPlus = MaxPlus.get();
+            for (int current = 0; current < numTags; current++) {
+                if (currentState[current] != Double.NEGATIVE_INFINITY) {
+                    maxPlus.update(currentState[current], transitions[current], 0, numTags, nextState, stateBackTrack, current);
+                }
+            }
+            return;
+        }
+
+        // for each of the reachable tags in current determine the tags where they can transition to
+        for (int current = 0; current < numTags; current++) {
+            // score in the current state, used to compute next score
+            double currentScore = currentState[current];
+            if (currentScore == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
+
+            // unseen transitions are negative infinity, so they never win
+            for (int next = 0; next < numTags; next++) {
+                double nextScore = currentScore + model.transition(current, next);
+
+                // keep the best score seen so far for next, and where it came from
+                if (nextScore > nextState[next]) {
+                    nextState[next] = nextScore;
+                    stateBackTrack[next] = current;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as expandAll, but only for some of the next tags
+     * @param model model to decode with
+     * @param currentState score of every tag in the current state
+     * @param nextState array to fill with the best score of every tag in the next state, before the observation
+     * @param stateBackTrack array to fill with the current tag every next tag came from
+     * @param candidates ids of the next tags to expand
+     * @param numCandidates number of ids in candidates
+     * @return whether any of the candidates can be reached
+     */
+    private static boolean expandCandidates(TaggerModel model, double[] currentState, double[] nextState, int[] stateBackTrack,
+                                            int[] candidates, int numCandidates){
+        int numTags = model.numTags();
+        Arrays.fill(nextState, 0, numTags, Double.NEGATIVE_INFINITY);
+
+        boolean reached = false;
+        for (int current = 0; current < numTags; current++) {
+            double currentScore = currentState[current];
+            if (currentScore == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
+
+            for (int i = 0; i < numCandidates; i++) {
+                int next = candidates[i];
+                double nextScore = currentScore + model.transition(current, next);
+                if (nextScore > nextState[next]) {
+                    nextState[next] = nextScore;
+                    stateBackTrack[next] = current;
+                    reached = true;
+                }
+            }
+        }
+        return reached;
+    }
+}
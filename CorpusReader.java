@@ -0,0 +1,378 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads a corpus file line by line over a memory-mapped view of its bytes, splitting every line into token spans
+ * instead of Strings. Tokens are interned straight from the bytes, so a String is only created the first time
+ * a token is seen, and the same String is returned every time after that
+ * Files bigger than what a single mapping can hold are read through a window that is moved along the file
+ * Lines end at \n, \r or \r\n and tokens are split on single spaces, the same as readLine() and split(" ")
+ * The file is read as UTF-8
+ */
+
+public class CorpusReader implements Closeable {
+    // bytes mapped at once
+    private static final int WINDOW = 1 << 30;
+
+    private final FileChannel channel;
+    private final long size;
+
+    // mapped part of the file, and where it starts in the file
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    // position in the file of the next line
+    private long next = 0;
+
+    // current line, as positions in the window
+    private int lineStart, lineEnd;
+
+    // tokens of the current line, as positions in the window
+    private int[] tokenStarts = new int[16];
+    private int[] tokenEnds = new int[16];
+    private int numTokens;
+
+    // interned tokens, ids are given in the order tokens are first seen
+    // open addressing over ids into strings and keys, -1 for an empty slot
+    private int[] slots = new int[1024];
+    private String[] strings = new String[512];
+    private byte[][] keys = new byte[512][];
+    private int numStrings = 0;
+
+    // ids of the tokens with characters outside ASCII, interned by their String instead, their key is null
+    private final Map<String, Integer> others = new HashMap<>();
+
+    /**
+     * @param channel open channel of the file
+     * @throws IOException if the file can't be mapped
+     */
+    private CorpusReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        Arrays.fill(slots, -1);
+        map(0);
+    }
+
+    /**
+     * @param fileName corpus file to read
+     * @return a reader positioned before the first line
+     * @throws IOException if the file can't be opened or mapped
+     */
+    public static CorpusReader open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            return new CorpusReader(channel);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param start position in the file where the window should start
+     * @throws IOException if the file can't be mapped
+     */
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, size - start));
+    }
+
+    /**
+     * Move to the next line, the tokens of the previous line are no longer valid
+     * @return false if there are no more lines
+     * @throws IOException if the file can't be mapped, or if a line doesn't fit in the window
+     */
+    public boolean nextLine() throws IOException {
+        if (next >= size) {
+            return false;
+        }
+        while (true) {
+            int limit = window.limit();
+            int start = (int) (next - windowStart);
+            int end = start;
+            while (end < limit && window.get(end) != '\n' && window.get(end) != '\r') {
+                end++;
+            }
+
+            // the line, or the byte after its end, is past the window, so move the window to the start of the line
+            if (end + 1 >= limit && windowStart + limit < size) {
+                if (next == windowStart) {
+                    throw new IOException("Line longer than " + WINDOW + " bytes.");
+                }
+                map(next);
+                continue;
+            }
+
+            lineStart = start;
+            lineEnd = end;
+            numTokens = 0;
+            next = windowStart + end;
+            if (end < limit) {
+                next++;
+                if (window.get(end) == '\r' && end + 1 < limit && window.get(end + 1) == '\n') {
+                    next++;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return position in the file of the next line
+     */
+    public long position(){
+        return next;
+    }
+
+    /**
+     * Move to a position in the file, which should be the start of a line
+     * @param position position given by position()
+     * @throws IOException if the file can't be mapped
+     */
+    public void seek(long position) throws IOException {
+        next = position;
+        numTokens = 0;
+        if (position < windowStart || position >= windowStart + window.limit()) {
+            map(Math.min(position, size));
+        }
+    }
+
+    /**
+     * @return the current line as a String
+     */
+    public String line(){
+        return decode(lineStart, lineEnd);
+    }
+
+    /**
+     * Split the current line on single spaces the same way split(" ") does
+     * @return number of tokens in the line
+     */
+    public int split(){
+        numTokens = 0;
+        boolean hasSpace = false;
+        int start = lineStart;
+        for (int i = lineStart; i <= lineEnd; i++) {
+            if (i == lineEnd || window.get(i) == ' ') {
+                addToken(start, i);
+                hasSpace |= i < lineEnd;
+                start = i + 1;
+            }
+        }
+
+        // like split, a line without spaces is a single token, even if it's empty, otherwise trailing empty tokens are dropped
+        if (hasSpace) {
+            while (numTokens > 0 && tokenStarts[numTokens - 1] == tokenEnds[numTokens - 1]) {
+                numTokens--;
+            }
+        }
+        return numTokens;
+    }
+
+    /**
+     * @param start position of the first byte of a token in the window
+     * @param end position after the last byte
+     */
+    private void addToken(int start, int end){
+        if (numTokens == tokenStarts.length) {
+            tokenStarts = Arrays.copyOf(tokenStarts, numTokens * 2);
+            tokenEnds = Arrays.copyOf(tokenEnds, numTokens * 2);
+        }
+        tokenStarts[numTokens] = start;
+        tokenEnds[numTokens] = end;
+        numTokens++;
+    }
+
+    /**
+     * @return number of tokens found by the last split()
+     */
+    public int numTokens(){
+        return numTokens;
+    }
+
+    /**
+     * @param i index of a token of the current line
+     * @param lowerCase whether to intern the token in lower case, like toLowerCase() would
+     * @return the interned token, the same String for every occurrence of it
+     */
+    public String token(int i, boolean lowerCase){
+        // take the id first, interning it may grow strings
+        int id = tokenId(i, lowerCase);
+        return strings[id];
+    }
+
+    /**
+     * @param i index of a token of the current line
+     * @param lowerCase whether to intern the token in lower case, like toLowerCase() would
+     * @return id of the interned token, ids count up from 0 in the order tokens are first seen
+     */
+    public int tokenId(int i, boolean lowerCase){
+        Objects.checkIndex(i, numTokens);
+        int start = tokenStarts[i];
+        int end = tokenEnds[i];
+
+        // hash the bytes the way they will be kept, giving up on the fast path for anything outside ASCII
+        int hash = 0;
+        for (int j = start; j < end; j++) {
+            byte b = window.get(j);
+            if (b < 0) {
+                String token = lowerCase ? decode(start, end).toLowerCase() : decode(start, end);
+                Integer id = others.get(token);
+                return id != null ? id : add(-1, token, null);
+            }
+            hash = 31 * hash + (lowerCase ? lower(b) : b);
+        }
+
+        int mask = slots.length - 1;
+        for (int slot = Vocabulary.mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id == -1) {
+                byte[] key = new byte[end - start];
+                for (int k = 0; k < key.length; k++) {
+                    byte b = window.get(start + k);
+                    key[k] = lowerCase ? lower(b) : b;
+                }
+                return add(slot, new String(key, StandardCharsets.US_ASCII), key);
+            }
+            if (matches(keys[id], start, end, lowerCase)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @param id id given by tokenId
+     * @return the interned token
+     */
+    public String string(int id){
+        return strings[id];
+    }
+
+    /**
+     * @return number of tokens interned so far
+     */
+    public int numStrings(){
+        return numStrings;
+    }
+
+    /**
+     * @param i index of a token of the current line
+     * @param other reader whose current line has been split
+     * @param j index of a token of the other reader's current line
+     * @return whether both tokens have exactly the same bytes
+     */
+    public boolean sameToken(int i, CorpusReader other, int j){
+        Objects.checkIndex(i, numTokens);
+        Objects.checkIndex(j, other.numTokens);
+        int length = tokenEnds[i] - tokenStarts[i];
+        if (length != other.tokenEnds[j] - other.tokenStarts[j]) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (window.get(tokenStarts[i] + k) != other.window.get(other.tokenStarts[j] + k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key bytes of an interned token
+     * @param start position of the first byte of a token in the window
+     * @param end position after the last byte
+     * @param lowerCase whether to compare the token in lower case
+     * @return whether the token is the interned one
+     */
+    private boolean matches(byte[] key, int start, int end, boolean lowerCase){
+        if (key.length != end - start) {
+            return false;
+        }
+        for (int k = 0; k < key.length; k++) {
+            byte b = window.get(start + k);
+            if (key[k] != (lowerCase ? lower(b) : b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Intern a new token, growing the table when it gets half full
+     * @param slot empty slot the token hashed to, or -1 for a token outside ASCII
+     * @param token the new String
+     * @param key bytes of the token, or null for a token outside ASCII
+     * @return id of the token
+     */
+    private int add(int slot, String token, byte[] key){
+        if (numStrings == strings.length) {
+            strings = Arrays.copyOf(strings, numStrings * 2);
+            keys = Arrays.copyOf(keys, numStrings * 2);
+        }
+        int id = numStrings++;
+        strings[id] = token;
+        keys[id] = key;
+
+        if (key == null) {
+            others.put(token, id);
+        }
+        else {
+            slots[slot] = id;
+            if (numStrings * 2 > slots.length) {
+                rehash();
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Double the slots and put every interned token back
+     */
+    private void rehash(){
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, -1);
+        int mask = slots.length - 1;
+        for (int id = 0; id < numStrings; id++) {
+            if (keys[id] == null) {
+                continue;
+            }
+            int slot = Vocabulary.mix(strings[id].hashCode()) & mask;
+            while (slots[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+    /**
+     * @param b an ASCII byte
+     * @return the byte in lower case
+     */
+    private static byte lower(byte b){
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * @param start position of the first byte in the window
+     * @param end position after the last byte
+     * @return the bytes decoded as UTF-8
+     */
+    private String decode(int start, int end){
+        byte[] bytes = new byte[end - start];
+        window.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Close the file, the mapping goes away once it's no longer reachable
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
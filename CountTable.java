@@ -0,0 +1,95 @@
+import java.util.*;
+
+/**
+ * Counts of long keys, without boxing, kept in the order the keys were first added
+ * Open addressing over entry indices, so reading the entries back in order is a plain loop
+ */
+
+public class CountTable {
+    private long[] keys = new long[256];
+    private int[] counts = new int[256];
+    private int size = 0;
+
+    // index of an entry for every slot, -1 for an empty slot
+    private int[] slots = new int[512];
+
+    public CountTable(){
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * @param key key to count
+     * @param amount amount to add to its count, a new key starts at 0
+     * @return index of the key's entry
+     */
+    public int add(long key, int amount){
+        int mask = slots.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == -1) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    counts = Arrays.copyOf(counts, size * 2);
+                }
+                keys[size] = key;
+                counts[size] = amount;
+                slots[slot] = size++;
+                if (size * 2 > slots.length) {
+                    rehash();
+                }
+                return size - 1;
+            }
+            if (keys[entry] == key) {
+                counts[entry] += amount;
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * @return number of different keys
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @param entry index of an entry, entries are in the order their key was first added
+     * @return key of the entry
+     */
+    public long key(int entry){
+        return keys[entry];
+    }
+
+    /**
+     * @param entry index of an entry, entries are in the order their key was first added
+     * @return count of the entry
+     */
+    public int count(int entry){
+        return counts[entry];
+    }
+
+    /**
+     * Double the slots and put every entry back
+     */
+    private void rehash(){
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, -1);
+        int mask = slots.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = mix(keys[entry]) & mask;
+            while (slots[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry;
+        }
+    }
+
+    /**
+     * @param key a key
+     * @return its bits folded and spread, so that packed keys don't pile up in the same slots
+     */
+    private static int mix(long key){
+        return Vocabulary.mix((int) (key ^ (key >>> 32)));
+    }
+}
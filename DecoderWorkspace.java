@@ -0,0 +1,157 @@
+import java.util.*;
+
+/**
+ * Arrays reused by a decoder from one sentence to the next, so that once they are big enough decoding
+ * a sentence doesn't allocate anything per word
+ * Not thread safe, every thread gets its own through get()
+ */
+
+public class DecoderWorkspace {
+    // one workspace per decoding thread
+    private static final ThreadLocal<DecoderWorkspace> WORKSPACES = ThreadLocal.withInitial(DecoderWorkspace::new);
+
+    // scores of every tag in the current and next state
+    public double[] currentState = new double[0];
+    public double[] nextState = new double[0];
+
+    // observation score of the word being decoded for every tag
+    public double[] observations = new double[0];
+
+    // tags worth expanding for the word being decoded, when pruning
+    public int[] candidates = new int[0];
+
+    // for every word, the tag in the previous state that every tag came from
+    public int[][] backTrack = new int[0][0];
+
+    // best tag of every word once backtracking is done
+    public int[] path = new int[0];
+
+    // the same for the trigram decoder, whose states are (current, previous) pairs of tags
+    public double[] currentPairs = new double[0];
+    public double[] nextPairs = new double[0];
+
+    // reachable pairs of the current column
+    public int[] alive = new int[0];
+
+    // heap of the best pairs seen so far, when keeping a beam
+    public int[] beam = new int[0];
+
+    // best score of every next tag from one current tag, and the previous tag it came from
+    public double[] best = new double[0];
+    public int[] from = new int[0];
+
+    // for every word and every (next, current), the tag before current on the best path
+    public short[][] pairTrace = new short[0][0];
+
+    // where every word starts and ends in the sentence
+    public int[] wordStarts = new int[16];
+    public int[] wordEnds = new int[16];
+
+    // number of words found by split()
+    public int numWords;
+
+    // buffer the decoded tags are written to
+    public final StringBuilder result = new StringBuilder();
+
+    /**
+     * @return the workspace of the calling thread
+     */
+    public static DecoderWorkspace get(){
+        return WORKSPACES.get();
+    }
+
+    /**
+     * Make sure every array is big enough for a sentence, growing them only when they aren't
+     * @param numTags number of tags in the model
+     * @param numWords number of words in the sentence
+     */
+    public void ensureCapacity(int numTags, int numWords){
+        if (currentState.length < numTags) {
+            currentState = new double[numTags];
+            nextState = new double[numTags];
+            observations = new double[numTags];
+            candidates = new int[numTags];
+            // rows of the old backtrack matrix are too short for this model
+            backTrack = new int[0][0];
+        }
+        if (backTrack.length < numWords) {
+            int[][] grown = Arrays.copyOf(backTrack, Math.max(numWords, backTrack.length * 2));
+            for (int w = backTrack.length; w < grown.length; w++) {
+                grown[w] = new int[currentState.length];
+            }
+            backTrack = grown;
+        }
+        if (path.length < numWords) {
+            path = new int[Math.max(numWords, path.length * 2)];
+        }
+    }
+
+    /**
+     * Same as ensureCapacity, plus the arrays of the trigram decoder
+     * @param numTags number of tags in the model
+     * @param numWords number of words in the sentence
+     * @param beamWidth number of pairs kept per word, 0 for no beam
+     */
+    public void ensurePairCapacity(int numTags, int numWords, int beamWidth){
+        ensureCapacity(numTags, numWords);
+        int numStates = numTags * numTags;
+        if (currentPairs.length < numStates) {
+            currentPairs = new double[numStates];
+            nextPairs = new double[numStates];
+            alive = new int[numStates];
+            best = new double[numTags];
+            from = new int[numTags];
+            // rows of the old backtrace are too short for this model
+            pairTrace = new short[0][0];
+        }
+        if (pairTrace.length < numWords) {
+            short[][] grown = Arrays.copyOf(pairTrace, Math.max(numWords, pairTrace.length * 2));
+            for (int w = pairTrace.length; w < grown.length; w++) {
+                grown[w] = new short[currentPairs.length];
+            }
+            pairTrace = grown;
+        }
+        if (beam.length < beamWidth) {
+            beam = new int[beamWidth];
+        }
+    }
+
+    /**
+     * Find the words of a sentence without creating a String for each, splitting on single spaces
+     * the same way sentence.split(" ") does
+     * @param sentence sentence to split
+     */
+    public void split(String sentence){
+        numWords = 0;
+        int start = 0;
+        for (int i = 0; i <= sentence.length(); i++) {
+            if (i == sentence.length() || sentence.charAt(i) == ' ') {
+                addWord(start, i);
+                start = i + 1;
+            }
+        }
+
+        // like split, a sentence without spaces is a single word, even if it's empty
+        if (sentence.indexOf(' ') == -1) {
+            return;
+        }
+        // and trailing empty words are dropped
+        while (numWords > 0 && wordStarts[numWords - 1] == wordEnds[numWords - 1]) {
+            numWords--;
+        }
+    }
+
+    /**
+     * @param start index of the first character of a word
+     * @param end index after the last character
+     */
+    private void addWord(int start, int end){
+        if (numWords == wordStarts.length) {
+            wordStarts = Arrays.copyOf(wordStarts, numWords * 2);
+            wordEnds = Arrays.copyOf(wordEnds, numWords * 2);
+        }
+        wordStarts[numWords] = start;
+        wordEnds[numWords] = end;
+        numWords++;
+    }
+}
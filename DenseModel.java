@@ -0,0 +1,264 @@
+import java.util.*;
+
+/**
+ * Frozen version of a trained tagger, where every tag is interned to an int id,
+ * transition frequencies are turned into a dense matrix of log probabilities
+ * and every word gets a sparse row with the log probabilities of the tags it was seen with
+ */
+
+public class DenseModel implements TaggerModel {
+    // score given to a transition or observation that was never seen while training
+    public static final double UNSEEN = -100.0;
+
+    // a tag is open class if at least this share of the words seen only once were seen with it
+    public static final double OPEN_CLASS_SHARE = 0.01;
+
+    // tag names indexed by their id
+    public final String[] tags;
+
+    // map matching a tag name to its id
+    public final Map<String, Integer> tagIds;
+
+    // id of the start of sentence tag
+    public final int start;
+
+    // log probability of transitioning from tag i to tag j, negative infinity if it was never seen
+    public final double[][] transitions;
+
+    // every word seen while training, interned to an id
+    public final Vocabulary vocabulary;
+
+    // for every word id, the ids of the tags it was seen with, in increasing order
+    public final int[][] emissionTags;
+
+    // for every word id, the log probability of the word given each tag in emissionTags
+    public final double[][] emissionScores;
+
+    // ids of the tags an unknown word is likely to have, those that many rare words were seen with
+    public int[] openClassTags;
+
+    /**
+     * @param tags tag names, the index of each one becomes its id
+     * @param start name of the start of sentence tag
+     * @param numWords number of words in the vocabulary
+     */
+    private DenseModel(String[] tags, String start, int numWords){
+        this.tags = tags;
+        this.tagIds = new HashMap<>();
+        for (int i = 0; i < tags.length; i++) {
+            tagIds.put(tags[i], i);
+        }
+        this.start = tagIds.get(start);
+
+        // no transition has been seen until the counts are copied in
+        this.transitions = new double[tags.length][tags.length];
+        for (double[] row : transitions) {
+            Arrays.fill(row, Double.NEGATIVE_INFINITY);
+        }
+
+        this.vocabulary = new Vocabulary(numWords);
+        this.emissionTags = new int[numWords][];
+        this.emissionScores = new double[numWords][];
+    }
+
+    /**
+     * Freeze a graph of transition frequencies and a map of observations into a dense model
+     * @param graph tags as vertices and transition frequencies as edges
+     * @param tagCounts number of times every tag has been seen
+     * @param observations map matching a word with the amount of times it has been seen with every tag
+     * @param start name of the start of sentence tag
+     * @return model with log transition and observation probabilities
+     */
+    public static DenseModel fromGraph(Graph<String, Integer> graph, Map<String, Integer> tagCounts,
+                                       Map<String, Map<String, Integer>> observations, String start){
+        // intern every vertex in the graph
+        List<String> names = new ArrayList<>();
+        for (String tag : graph.vertices()) {
+            names.add(tag);
+        }
+        DenseModel model = new DenseModel(names.toArray(new String[0]), start, observations.size());
+
+        // how many times does tag 2 come after tag 1 compared to how many times tag 1 appears at all
+        for (int from = 0; from < model.tags.length; from++) {
+            double total = tagCounts.get(model.tags[from]);
+            for (String to : graph.outNeighbors(model.tags[from])) {
+                model.transitions[from][model.tagIds.get(to)] = Math.log(graph.getLabel(model.tags[from], to) / total);
+            }
+        }
+
+        model.addObservations(observations, tagCounts);
+        return model;
+    }
+
+    /**
+     * Freeze maps of transition frequencies and observations into a dense model
+     * @param transitionCounts map matching a tag with the amount of times it was followed by every other tag
+     * @param tagCounts number of times every tag has been seen, every tag must be a key
+     * @param observations map matching a word with the amount of times it has been seen with every tag
+     * @param start name of the start of sentence tag
+     * @return model with log transition and observation probabilities
+     */
+    public static DenseModel fromCounts(Map<String, Map<String, Integer>> transitionCounts, Map<String, Integer> tagCounts,
+                                        Map<String, Map<String, Integer>> observations, String start){
+        // intern every tag that has a count
+        DenseModel model = new DenseModel(tagCounts.keySet().toArray(new String[0]), start, observations.size());
+
+        // how many times does tag 2 come after tag 1 compared to how many times tag 1 appears at all
+        for (String from : transitionCounts.keySet()) {
+            int fromId = model.tagIds.get(from);
+            double total = tagCounts.get(from);
+            Map<String, Integer> followers = transitionCounts.get(from);
+            for (String to : followers.keySet()) {
+                model.transitions[fromId][model.tagIds.get(to)] = Math.log(followers.get(to) / total);
+            }
+        }
+
+        model.addObservations(observations, tagCounts);
+        return model;
+    }
+
+    /**
+     * Intern every word and build its sparse row of observation log probabilities
+     * @param observations map matching a word with the amount of times it has been seen with every tag
+     * @param tagCounts number of times every tag has been seen
+     */
+    private void addObservations(Map<String, Map<String, Integer>> observations, Map<String, Integer> tagCounts){
+        // number of words seen only once with every tag
+        int[] rareWords = new int[tags.length];
+        int totalRareWords = 0;
+
+        for (String word : observations.keySet()) {
+            int wordId = vocabulary.intern(word);
+            Map<String, Integer> seenTags = observations.get(word);
+
+            if (seenTags.size() == 1 && seenTags.values().iterator().next() == 1) {
+                rareWords[tagIds.get(seenTags.keySet().iterator().next())]++;
+                totalRareWords++;
+            }
+
+            // sort the tags of the row by id so a single tag can be found by binary search
+            int[] rowTags = new int[seenTags.size()];
+            int i = 0;
+            for (String tag : seenTags.keySet()) {
+                rowTags[i++] = tagIds.get(tag);
+            }
+            Arrays.sort(rowTags);
+
+            // how many times was the word seen with the tag compared to how many times the tag appears at all
+            double[] rowScores = new double[rowTags.length];
+            for (i = 0; i < rowTags.length; i++) {
+                String tag = tags[rowTags[i]];
+                rowScores[i] = Math.log((double) seenTags.get(tag) / (double) tagCounts.get(tag));
+            }
+
+            emissionTags[wordId] = rowTags;
+            emissionScores[wordId] = rowScores;
+        }
+
+        // unknown words behave like rare words, so they are given the tags rare words were seen with
+        int[] openClass = new int[tags.length];
+        int numOpenClass = 0;
+        for (int tag = 0; tag < tags.length; tag++) {
+            boolean open = totalRareWords == 0 || rareWords[tag] >= Math.max(1, OPEN_CLASS_SHARE * totalRareWords);
+            if (open && tag != start && tagCounts.containsKey(tags[tag]) && tagCounts.get(tags[tag]) > 0) {
+                openClass[numOpenClass++] = tag;
+            }
+        }
+        openClassTags = Arrays.copyOf(openClass, numOpenClass);
+    }
+
+    @Override
+    public int numTags(){
+        return tags.length;
+    }
+
+    @Override
+    public String tagName(int id){
+        return tags[id];
+    }
+
+    @Override
+    public int startTag(){
+        return start;
+    }
+
+    @Override
+    public int tagId(String tag){
+        Integer id = tagIds.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public double transition(int from, int to){
+        return transitions[from][to];
+    }
+
+    @Override
+    public double transitionScore(int from, int to){
+        double score = transitions[from][to];
+        return score == Double.NEGATIVE_INFINITY ? UNSEEN : score;
+    }
+
+    @Override
+    public double observationScore(String word, int tag){
+        int wordId = vocabulary.find(word);
+        if (wordId == -1) {
+            return UNSEEN;
+        }
+        int i = Arrays.binarySearch(emissionTags[wordId], tag);
+        return i < 0 ? UNSEEN : emissionScores[wordId][i];
+    }
+
+    @Override
+    public void observationScores(String word, double[] scores){
+        scatter(vocabulary.find(word), scores);
+    }
+
+    @Override
+    public void observationScores(String sentence, int start, int end, double[] scores){
+        scatter(vocabulary.find(sentence, start, end), scores);
+    }
+
+    @Override
+    public int candidateTags(String sentence, int start, int end, int[] candidates){
+        int wordId = vocabulary.find(sentence, start, end);
+        int[] row = wordId == -1 ? openClassTags : emissionTags[wordId];
+        System.arraycopy(row, 0, candidates, 0, row.length);
+        return row.length;
+    }
+
+    /**
+     * @return rough number of bytes taken on the heap by the tables and the vocabulary, not counting the tag names
+     */
+    public long approximateBytes(){
+        long bytes = vocabulary.approximateBytes()
+                + 16 + 4L * tags.length
+                + 16 + 4L * openClassTags.length;
+        for (double[] row : transitions) {
+            bytes += 16 + 8L * row.length;
+        }
+        // two arrays of references, and two arrays per word
+        bytes += 2 * (16 + 4L * emissionTags.length);
+        for (int id = 0; id < vocabulary.size(); id++) {
+            bytes += 16 + 4L * emissionTags[id].length + 16 + 8L * emissionScores[id].length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param wordId id of a word, or -1 for a word never seen while training
+     * @param scores array of length tags.length to fill with the observation score of the word for every tag
+     */
+    private void scatter(int wordId, double[] scores){
+        Arrays.fill(scores, UNSEEN);
+        if (wordId == -1) {
+            return;
+        }
+        // scatter the sparse row of the word
+        int[] rowTags = emissionTags[wordId];
+        double[] rowScores = emissionScores[wordId];
+        for (int i = 0; i < rowTags.length; i++) {
+            scores[rowTags[i]] = rowScores[i];
+        }
+    }
+}
@@ -0,0 +1,415 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compiled model read straight from a memory-mapped file, so several processes tagging on the same machine
+ * share one copy of the tables in the page cache and none of it lives on the heap
+ *
+ * Image layout, all numbers big endian. The tag names are padded to an 8 byte boundary, so both sections of doubles
+ * start on one, and every section after them on a 4 byte boundary, since all their lengths are multiples of 4:
+ *   header        magic, version, number of tags, start tag, number of words, hash slots, emission entries,
+ *                 length of the word bytes, length of the tag names, number of open class tags
+ *   tag names     every tag name, written with writeUTF
+ *   transitions   numTags * numTags doubles, negative infinity if never seen
+ *   emissions     log probability of every (word, tag) seen, row after row
+ *   slots         open addressing hash table of word ids, -1 if empty
+ *   word offsets  where the bytes of every word start, plus the end of the last word
+ *   row offsets   where the emission row of every word starts, plus the end of the last row
+ *   row tags      id of the tag of every emission entry
+ *   open class    ids of the tags given to unknown words when pruning
+ *   word bytes    every word in UTF-8, one after the other
+ */
+
+public class MappedModel implements TaggerModel {
+    // first four bytes of every model image, "SUDM"
+    public static final int MAGIC = 0x5355444D;
+
+    // bumped every time the layout changes
+    public static final int VERSION = 2;
+
+    // size of the header in bytes
+    private static final int HEADER_SIZE = 10 * 4;
+
+    // tag names indexed by their id, and the id of every tag name, small enough to keep on the heap
+    private final String[] tags;
+    private final Map<String, Integer> tagIds;
+    private final int start;
+
+    // views over the mapped file
+    private final DoubleBuffer transitions;
+    private final DoubleBuffer emissionScores;
+    private final IntBuffer slots;
+    private final IntBuffer wordOffsets;
+    private final IntBuffer rowOffsets;
+    private final IntBuffer rowTags;
+    private final IntBuffer openClassTags;
+    private final ByteBuffer wordBytes;
+
+    /**
+     * @param buffer the whole mapped image
+     */
+    private MappedModel(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a model image");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported model image version " + buffer.getInt(4));
+        }
+        int numTags = buffer.getInt(8);
+        start = buffer.getInt(12);
+        int numWords = buffer.getInt(16);
+        int numSlots = buffer.getInt(20);
+        int numEntries = buffer.getInt(24);
+        int wordBytesLength = buffer.getInt(28);
+        int tagNamesLength = buffer.getInt(32);
+        int numOpenClass = buffer.getInt(36);
+
+        // copy the tag names out of the image
+        byte[] tagNames = new byte[tagNamesLength];
+        buffer.position(HEADER_SIZE);
+        buffer.get(tagNames);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(tagNames));
+        tags = new String[numTags];
+        tagIds = new HashMap<>();
+        for (int i = 0; i < numTags; i++) {
+            tags[i] = in.readUTF();
+            tagIds.put(tags[i], i);
+        }
+
+        // every other section is a view over the mapping, nothing is copied
+        int offset = align(HEADER_SIZE + tagNamesLength);
+        transitions = slice(buffer, offset, numTags * numTags * 8).asDoubleBuffer();
+        offset += numTags * numTags * 8;
+        emissionScores = slice(buffer, offset, numEntries * 8).asDoubleBuffer();
+        offset += numEntries * 8;
+        slots = slice(buffer, offset, numSlots * 4).asIntBuffer();
+        offset += numSlots * 4;
+        wordOffsets = slice(buffer, offset, (numWords + 1) * 4).asIntBuffer();
+        offset += (numWords + 1) * 4;
+        rowOffsets = slice(buffer, offset, (numWords + 1) * 4).asIntBuffer();
+        offset += (numWords + 1) * 4;
+        rowTags = slice(buffer, offset, numEntries * 4).asIntBuffer();
+        offset += numEntries * 4;
+        openClassTags = slice(buffer, offset, numOpenClass * 4).asIntBuffer();
+        offset += numOpenClass * 4;
+        wordBytes = slice(buffer, offset, wordBytesLength);
+    }
+
+    /**
+     * Map a model image written by write()
+     * @param path file holding the image
+     * @return model reading its tables from the mapping
+     */
+    public static MappedModel open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedModel(buffer);
+        }
+    }
+
+    /**
+     * Write a compiled model as an image that can be memory-mapped with open()
+     * @param model compiled model
+     * @param path file to write the image to
+     */
+    public static void write(DenseModel model, Path path) throws IOException {
+        int numTags = model.tags.length;
+        int numWords = model.vocabulary.size();
+
+        // tag names, written first to know their length
+        ByteArrayOutputStream tagNames = new ByteArrayOutputStream();
+        DataOutputStream names = new DataOutputStream(tagNames);
+        for (String tag : model.tags) {
+            names.writeUTF(tag);
+        }
+
+        // words in UTF-8, and where each one starts
+        byte[][] words = new byte[numWords][];
+        int[] wordStarts = new int[numWords + 1];
+        for (int id = 0; id < numWords; id++) {
+            words[id] = model.vocabulary.word(id).getBytes(StandardCharsets.UTF_8);
+            wordStarts[id + 1] = wordStarts[id] + words[id].length;
+        }
+
+        // where the emission row of every word starts
+        int[] rowStarts = new int[numWords + 1];
+        for (int id = 0; id < numWords; id++) {
+            rowStarts[id + 1] = rowStarts[id] + model.emissionTags[id].length;
+        }
+
+        // hash table of word ids kept at most half full, probed the same way as Vocabulary
+        int numSlots = Integer.highestOneBit(Math.max(numWords, 8) * 2 - 1) << 1;
+        int[] table = new int[numSlots];
+        Arrays.fill(table, -1);
+        for (int id = 0; id < numWords; id++) {
+            int slot = Vocabulary.mix(model.vocabulary.word(id).hashCode()) & (numSlots - 1);
+            while (table[slot] != -1) {
+                slot = (slot + 1) & (numSlots - 1);
+            }
+            table[slot] = id;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numTags);
+            out.writeInt(model.start);
+            out.writeInt(numWords);
+            out.writeInt(numSlots);
+            out.writeInt(rowStarts[numWords]);
+            out.writeInt(wordStarts[numWords]);
+            out.writeInt(tagNames.size());
+            out.writeInt(model.openClassTags.length);
+            tagNames.writeTo(out);
+            for (int i = HEADER_SIZE + tagNames.size(); i < align(HEADER_SIZE + tagNames.size()); i++) {
+                out.writeByte(0);
+            }
+
+            for (double[] row : model.transitions) {
+                for (double score : row) {
+                    out.writeDouble(score);
+                }
+            }
+            for (double[] row : model.emissionScores) {
+                for (double score : row) {
+                    out.writeDouble(score);
+                }
+            }
+            for (int id : table) {
+                out.writeInt(id);
+            }
+            for (int wordStart : wordStarts) {
+                out.writeInt(wordStart);
+            }
+            for (int rowStart : rowStarts) {
+                out.writeInt(rowStart);
+            }
+            for (int[] row : model.emissionTags) {
+                for (int tag : row) {
+                    out.writeInt(tag);
+                }
+            }
+            for (int tag : model.openClassTags) {
+                out.writeInt(tag);
+            }
+            for (byte[] word : words) {
+                out.write(word);
+            }
+        }
+    }
+
+    @Override
+    public int numTags(){
+        return tags.length;
+    }
+
+    @Override
+    public String tagName(int id){
+        return tags[id];
+    }
+
+    @Override
+    public int tagId(String tag){
+        Integer id = tagIds.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public int startTag(){
+        return start;
+    }
+
+    @Override
+    public double transition(int from, int to){
+        return transitions.get(from * tags.length + to);
+    }
+
+    @Override
+    public double transitionScore(int from, int to){
+        double score = transition(from, to);
+        return score == Double.NEGATIVE_INFINITY ? DenseModel.UNSEEN : score;
+    }
+
+    @Override
+    public double observationScore(String word, int tag){
+        int wordId = findWord(word);
+        if (wordId == -1) {
+            return DenseModel.UNSEEN;
+        }
+        // rows are sorted by tag id
+        int low = rowOffsets.get(wordId);
+        int high = rowOffsets.get(wordId + 1) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleTag = rowTags.get(middle);
+            if (middleTag < tag) {
+                low = middle + 1;
+            }
+            else if (middleTag > tag) {
+                high = middle - 1;
+            }
+            else {
+                return emissionScores.get(middle);
+            }
+        }
+        return DenseModel.UNSEEN;
+    }
+
+    @Override
+    public void observationScores(String word, double[] scores){
+        scatter(findWord(word), scores);
+    }
+
+    @Override
+    public void observationScores(String sentence, int start, int end, double[] scores){
+        scatter(findWord(sentence, start, end), scores);
+    }
+
+    @Override
+    public int candidateTags(String sentence, int start, int end, int[] candidates){
+        int wordId = findWord(sentence, start, end);
+        if (wordId == -1) {
+            for (int i = 0; i < openClassTags.capacity(); i++) {
+                candidates[i] = openClassTags.get(i);
+            }
+            return openClassTags.capacity();
+        }
+        int from = rowOffsets.get(wordId);
+        int to = rowOffsets.get(wordId + 1);
+        for (int i = from; i < to; i++) {
+            candidates[i - from] = rowTags.get(i);
+        }
+        return to - from;
+    }
+
+    /**
+     * @param wordId id of a word, or -1 for a word never seen while training
+     * @param scores array of length numTags() to fill with the observation score of the word for every tag
+     */
+    private void scatter(int wordId, double[] scores){
+        Arrays.fill(scores, DenseModel.UNSEEN);
+        if (wordId == -1) {
+            return;
+        }
+        // scatter the sparse row of the word
+        for (int i = rowOffsets.get(wordId); i < rowOffsets.get(wordId + 1); i++) {
+            scores[rowTags.get(i)] = emissionScores.get(i);
+        }
+    }
+
+    /**
+     * Look a word up in the mapped hash table, comparing its bytes with the mapped word bytes
+     * @param word lower case word
+     * @return id of the word, or -1 if it was never seen while training
+     */
+    private int findWord(String word){
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        int mask = slots.capacity() - 1;
+        int slot = Vocabulary.mix(word.hashCode()) & mask;
+        // linear probing until the word or an empty slot is found
+        while (slots.get(slot) != -1) {
+            int id = slots.get(slot);
+            if (sameBytes(bytes, wordOffsets.get(id), wordOffsets.get(id + 1))) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Look up a word that is part of a longer text, comparing characters with the mapped bytes directly
+     * as long as the word is plain ASCII
+     * @param text text holding the word
+     * @param start index of the first character of the word
+     * @param end index after the last character of the word
+     * @return id of the word, or -1 if it was never seen while training
+     */
+    private int findWord(String text, int start, int end){
+        // same hash as String.hashCode() of the word
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // the UTF-8 bytes of the word aren't its characters, compare them the slow way
+                return findWord(text.substring(start, end));
+            }
+            hash = 31 * hash + c;
+        }
+
+        int mask = slots.capacity() - 1;
+        int slot = Vocabulary.mix(hash) & mask;
+        while (slots.get(slot) != -1) {
+            int id = slots.get(slot);
+            if (sameChars(text, start, end, wordOffsets.get(id), wordOffsets.get(id + 1))) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param text text holding an ASCII word
+     * @param start index of the first character of the word
+     * @param end index after the last character of the word
+     * @param from start of a word in the mapped word bytes
+     * @param to end of that word
+     * @return whether both words are the same
+     */
+    private boolean sameChars(String text, int start, int end, int from, int to){
+        if (to - from != end - start) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (wordBytes.get(from + i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param bytes UTF-8 bytes of a word
+     * @param from start of a word in the mapped word bytes
+     * @param to end of that word
+     * @return whether both words are the same
+     */
+    private boolean sameBytes(byte[] bytes, int from, int to){
+        if (to - from != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (wordBytes.get(from + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param buffer whole image
+     * @param offset start of a section
+     * @param length length of the section in bytes
+     * @return view over the section
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length){
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    /**
+     * @param offset position in the image
+     * @return the next multiple of 8
+     */
+    private static int align(int offset){
+        return (offset + 7) & ~7;
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * The inner step of Viterbi decoding as a max-plus update over a row of scores:
+ * for every j, best[j] = max(best[j], base + row[j] (+ add[j])), remembering which source gave the best
+ *
+ * There is a plain scalar version and one using the incubating Vector API (VectorMaxPlus). Which one is used
+ * is picked at runtime with the sudi.maxplus system property ("scalar" or "vector") or with use(), and a thread
+ * can decode with another one for a while without changing the one every other decoder uses
+ * VectorMaxPlus lives in vector/, apart from the other sources, since it needs --add-modules jdk.incubator.vector
+ * to compile and to run. Without it on the class path, or without the module at runtime, it can't be loaded
+ * and the scalar version is used instead
+ */
+
+public abstract class MaxPlus {
+    // the Vector API implementation, loaded at most once, null if it isn't available
+    private static MaxPlus loadedVector;
+    private static boolean vectorLoaded = false;
+
+    // implementation used by the decoders
+    private static volatile MaxPlus current = choose(System.getProperty("sudi.maxplus", "scalar"));
+
+    // implementation used by the decoders of one thread instead of current, null for most threads
+    private static final ThreadLocal<MaxPlus> OVERRIDE = new ThreadLocal<>();
+
+    /**
+     * @return the implementation the decoders of the calling thread should use
+     */
+    public static MaxPlus get(){
+        MaxPlus override = OVERRIDE.get();
+        return override != null ? override : current;
+    }
+
+    /**
+     * Switch implementation at runtime
+     * @param name "vector" for the Vector API, anything else for scalar
+     * @return the implementation now in use, scalar if the Vector API isn't available
+     */
+    public static MaxPlus use(String name){
+        current = choose(name);
+        return current;
+    }
+
+    /**
+     * @param name "vector" for the Vector API, anything else for scalar
+     * @return the implementation with that name, or the scalar one if the Vector API isn't available
+     */
+    private static MaxPlus choose(String name){
+        if ("vector".equals(name) && vector() != null) {
+            return vector();
+        }
+        return new Scalar();
+    }
+
+    /**
+     * @return the Vector API implementation, or null if it isn't available, which is only reported the first time
+     */
+    public static synchronized MaxPlus vector(){
+        if (!vectorLoaded) {
+            vectorLoaded = true;
+            try {
+                // loaded by name, so this class works without the incubator module
+                loadedVector = (MaxPlus) Class.forName("VectorMaxPlus").getDeclaredConstructor().newInstance();
+            }
+            catch (Exception | LinkageError e) {
+                System.err.println("Vector API not available, using scalar max-plus.\n" + e);
+            }
+        }
+        return loadedVector;
+    }
+
+    /**
+     * Tag a file with the scalar and the Vector API max-plus updates, and compare both
+     * Only the calling thread switches implementation, decoders running elsewhere keep the one in use
+     * The results are written to temporary files, deleted once compared
+     * @param fileName to "decode" or tag, one sentence per line
+     * @param decoder gives the tags of a sentence, decoding on the calling thread
+     * @param discrepancies compares two tag files, like discrepancies
+     * @return a string with both times and the discrepancies between the two results
+     */
+    public static String report(String fileName, UnaryOperator<String> decoder, BinaryOperator<String> discrepancies){
+        MaxPlus scalar = new Scalar();
+        MaxPlus vector = vector();
+        Path scalarResult = null;
+        Path vectorResult = null;
+        try {
+            scalarResult = Files.createTempFile("maxplus", ".scalar");
+            vectorResult = Files.createTempFile("maxplus", ".vector");
+
+            if (vector == null) {
+                long scalarTime = tagWith(scalar, fileName, scalarResult, decoder);
+                return "Max-plus scalar took " + scalarTime / 1000000 + " ms.\n"
+                        + "Vector API not available, nothing to compare against.";
+            }
+
+            // alternate between both a few times and keep the best time of each, so JIT warm up doesn't favour either
+            long scalarTime = Long.MAX_VALUE;
+            long vectorTime = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                scalarTime = Math.min(scalarTime, tagWith(scalar, fileName, scalarResult, decoder));
+                vectorTime = Math.min(vectorTime, tagWith(vector, fileName, vectorResult, decoder));
+            }
+
+            return "Max-plus vector took " + vectorTime / 1000000 + " ms, scalar took " + scalarTime / 1000000 + " ms.\n"
+                    + "Vector against scalar: " + discrepancies.apply(scalarResult.toString(), vectorResult.toString());
+        }
+        catch (IOException e) {
+            System.err.println("Cannot tag file.\n" + e.getMessage());
+            return "";
+        }
+        finally {
+            deleteQuietly(scalarResult);
+            deleteQuietly(vectorResult);
+        }
+    }
+
+    /**
+     * Tag every sentence of a file on the calling thread with a given implementation
+     * @param maxPlus implementation to decode with
+     * @param fileName file of sentences, one per line
+     * @param result where to write the tags of every sentence
+     * @param decoder gives the tags of a sentence
+     * @return time taken, in nanoseconds
+     * @throws IOException if either file can't be read or written
+     */
+    private static long tagWith(MaxPlus maxPlus, String fileName, Path result, UnaryOperator<String> decoder) throws IOException {
+        MaxPlus previous = OVERRIDE.get();
+        OVERRIDE.set(maxPlus);
+        try (BufferedReader input = new BufferedReader(new FileReader(fileName));
+             BufferedWriter output = new BufferedWriter(new FileWriter(result.toFile()))) {
+            long start = System.nanoTime();
+            String sentence;
+            while ((sentence = input.readLine()) != null) {
+                output.write(decoder.apply(sentence));
+                output.write('\n');
+            }
+            return System.nanoTime() - start;
+        }
+        finally {
+            OVERRIDE.set(previous);
+        }
+    }
+
+    /**
+     * @param path file to delete, or null
+     */
+    private static void deleteQuietly(Path path){
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            System.err.println("Cannot delete file.\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * @return short name of the implementation
+     */
+    public abstract String name();
+
+    /**
+     * For every j in [0, length), if base + row[rowOffset + j] > best[j], store it in best[j] and store source in from[j]
+     * @param base score added to every entry of the row
+     * @param row scores to add, negative infinity where not allowed
+     * @param rowOffset index of the first score in row
+     * @param length number of entries to update
+     * @param best best scores so far, updated in place
+     * @param from source of every best score, updated in place
+     * @param source value stored in from where the score improves
+     */
+    public abstract void update(double base, double[] row, int rowOffset, int length, double[] best, int[] from, int source);
+
+    /**
+     * Same as the other update, for a float row and with a second row added: base + row[rowOffset + j] + add[j]
+     * @param base score added to every entry of the row
+     * @param row scores to add, negative infinity where not allowed
+     * @param rowOffset index of the first score in row
+     * @param add scores added after the row, one per entry
+     * @param length number of entries to update
+     * @param best best scores so far, updated in place
+     * @param from source of every best score, updated in place
+     * @param source value stored in from where the score improves
+     */
+    public abstract void update(double base, float[] row, int rowOffset, double[] add, int length, double[] best, int[] from, int source);
+
+    /**
+     * Plain loops, always available
+     */
+    public static class Scalar extends MaxPlus {
+        @Override
+        public String name(){
+            return "scalar";
+        }
+
+        @Override
+        public void update(double base, double[] row, int rowOffset, int length, double[] best, int[] from, int source){
+            for (int j = 0; j < length; j++) {
+                double score = base + row[rowOffset + j];
+                if (score > best[j]) {
+                    best[j] = score;
+                    from[j] = source;
+                }
+            }
+        }
+
+        @Override
+        public void update(double base, float[] row, int rowOffset, double[] add, int length, double[] best, int[] from, int source){
+            for (int j = 0; j < length; j++) {
+                double score = base + row[rowOffset + j] + add[j];
+                if (score > best[j]) {
+                    best[j] = score;
+                    from[j] = source;
+                }
+            }
+        }
+    }
+}
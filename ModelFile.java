@@ -0,0 +1,218 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compact versioned binary format for the counts of a trained tagger, so a model can be saved once
+ * and loaded without another training pass over the corpus
+ *
+ * Layout, all numbers big endian:
+ *   header        magic, version, kind of model
+ *   tag table     number of tags, then every tag name with the number of times it was seen
+ *   transitions   for every tag, the ids and counts of the tags that followed it
+ *   trigrams      (SudiEC only) for every pair of tags, the ids and counts of the tags that followed the pair
+ *   vocabulary    number of words, then every word with the ids and counts of the tags it was seen with
+ *
+ * Words are written in sorted order, so that ModelMerger can merge files one word at a time
+ */
+
+public class ModelFile {
+    // first four bytes of every model file, "SUDI"
+    public static final int MAGIC = 0x53554449;
+
+    // bumped every time the layout changes
+    public static final int VERSION = 1;
+
+    // kind of model stored in the file
+    public static final int BIGRAM = 0;
+    public static final int TRIGRAM = 1;
+
+    /**
+     * @param out stream to write to
+     * @param kind BIGRAM or TRIGRAM
+     */
+    public static void writeHeader(DataOutputStream out, int kind) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(kind);
+    }
+
+    /**
+     * Check that a stream holds a model file of the expected kind
+     * @param in stream to read from
+     * @param kind BIGRAM or TRIGRAM
+     */
+    public static void readHeader(DataInputStream in, int kind) throws IOException {
+        int storedKind = readKind(in);
+        if (storedKind != kind) {
+            throw new IOException("Model file holds a " + (storedKind == BIGRAM ? "bigram" : "trigram") + " model");
+        }
+    }
+
+    /**
+     * Check that a stream holds a model file of any kind
+     * @param in stream to read from
+     * @return BIGRAM or TRIGRAM
+     */
+    public static int readKind(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a model file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported model file version " + version);
+        }
+        return in.readInt();
+    }
+
+    /**
+     * Write every tag with its count, the position of each tag becomes its id in the rest of the file
+     * @param out stream to write to
+     * @param tagCounts number of times every tag has been seen
+     * @return map matching every tag with its id
+     */
+    public static Map<String, Integer> writeTags(DataOutputStream out, Map<String, Integer> tagCounts) throws IOException {
+        Map<String, Integer> tagIds = new HashMap<>();
+        out.writeInt(tagCounts.size());
+        for (String tag : tagCounts.keySet()) {
+            tagIds.put(tag, tagIds.size());
+            out.writeUTF(tag);
+            out.writeInt(tagCounts.get(tag));
+        }
+        return tagIds;
+    }
+
+    /**
+     * @param in stream to read from
+     * @param tagCounts map to fill with the number of times every tag has been seen
+     * @return tag names indexed by their id
+     */
+    public static String[] readTags(DataInputStream in, Map<String, Integer> tagCounts) throws IOException {
+        String[] tags = new String[in.readInt()];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = in.readUTF();
+            tagCounts.put(tags[i], in.readInt());
+        }
+        return tags;
+    }
+
+    /**
+     * Write how many times every tag was followed by every other tag
+     * @param out stream to write to
+     * @param transitionCounts map matching a tag with the amount of times it was followed by every other tag
+     * @param tagIds map matching every tag with its id
+     */
+    public static void writeTransitions(DataOutputStream out, Map<String, Map<String, Integer>> transitionCounts,
+                                        Map<String, Integer> tagIds) throws IOException {
+        out.writeInt(transitionCounts.size());
+        for (String from : transitionCounts.keySet()) {
+            out.writeInt(tagIds.get(from));
+            writeTagCounts(out, transitionCounts.get(from), tagIds);
+        }
+    }
+
+    /**
+     * @param in stream to read from
+     * @param tags tag names indexed by their id
+     * @return map matching a tag with the amount of times it was followed by every other tag
+     */
+    public static Map<String, Map<String, Integer>> readTransitions(DataInputStream in, String[] tags) throws IOException {
+        Map<String, Map<String, Integer>> transitionCounts = new HashMap<>();
+        int numRows = in.readInt();
+        for (int i = 0; i < numRows; i++) {
+            String from = tags[in.readInt()];
+            transitionCounts.put(from, readTagCounts(in, tags));
+        }
+        return transitionCounts;
+    }
+
+    /**
+     * Write how many times every pair of tags was followed by every other tag
+     * @param out stream to write to
+     * @param trigramCounts map matching (previous, current) with the amount of times it was followed by every tag
+     * @param tagIds map matching every tag with its id
+     */
+    public static void writeTrigrams(DataOutputStream out, Map<String, Map<String, Map<String, Integer>>> trigramCounts,
+                                     Map<String, Integer> tagIds) throws IOException {
+        out.writeInt(trigramCounts.size());
+        for (String previous : trigramCounts.keySet()) {
+            out.writeInt(tagIds.get(previous));
+            writeTransitions(out, trigramCounts.get(previous), tagIds);
+        }
+    }
+
+    /**
+     * @param in stream to read from
+     * @param tags tag names indexed by their id
+     * @return map matching (previous, current) with the amount of times it was followed by every tag
+     */
+    public static Map<String, Map<String, Map<String, Integer>>> readTrigrams(DataInputStream in, String[] tags) throws IOException {
+        Map<String, Map<String, Map<String, Integer>>> trigramCounts = new HashMap<>();
+        int numRows = in.readInt();
+        for (int i = 0; i < numRows; i++) {
+            String previous = tags[in.readInt()];
+            trigramCounts.put(previous, readTransitions(in, tags));
+        }
+        return trigramCounts;
+    }
+
+    /**
+     * Write every word with how many times it was seen with every tag
+     * @param out stream to write to
+     * @param observations map matching a word with the amount of times it has been seen with every tag
+     * @param tagIds map matching every tag with its id
+     */
+    public static void writeVocabulary(DataOutputStream out, Map<String, Map<String, Integer>> observations,
+                                       Map<String, Integer> tagIds) throws IOException {
+        List<String> words = new ArrayList<>(observations.keySet());
+        Collections.sort(words);
+
+        out.writeInt(words.size());
+        for (String word : words) {
+            out.writeUTF(word);
+            writeTagCounts(out, observations.get(word), tagIds);
+        }
+    }
+
+    /**
+     * @param in stream to read from
+     * @param tags tag names indexed by their id
+     * @return map matching a word with the amount of times it has been seen with every tag
+     */
+    public static Map<String, Map<String, Integer>> readVocabulary(DataInputStream in, String[] tags) throws IOException {
+        int numWords = in.readInt();
+        Map<String, Map<String, Integer>> observations = new HashMap<>(numWords * 2);
+        for (int i = 0; i < numWords; i++) {
+            String word = in.readUTF();
+            observations.put(word, readTagCounts(in, tags));
+        }
+        return observations;
+    }
+
+    /**
+     * @param out stream to write to
+     * @param counts map matching a tag with a count
+     * @param tagIds map matching every tag with its id
+     */
+    private static void writeTagCounts(DataOutputStream out, Map<String, Integer> counts, Map<String, Integer> tagIds) throws IOException {
+        out.writeInt(counts.size());
+        for (String tag : counts.keySet()) {
+            out.writeInt(tagIds.get(tag));
+            out.writeInt(counts.get(tag));
+        }
+    }
+
+    /**
+     * @param in stream to read from
+     * @param tags tag names indexed by their id
+     * @return map matching a tag with a count
+     */
+    private static Map<String, Integer> readTagCounts(DataInputStream in, String[] tags) throws IOException {
+        int size = in.readInt();
+        Map<String, Integer> counts = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String tag = tags[in.readInt()];
+            counts.put(tag, in.readInt());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Sum model files saved by Sudi.save or SudiEC.save on separate slices of a corpus into one model file,
+ * the same counts as training on all the slices one after the other
+ *
+ * Tag counts, transitions and trigrams only grow with the number of tags, so they are summed in memory one
+ * input at a time. The vocabulary is merged as a stream, every input is read one word at a time in sorted order,
+ * so only one word per input is ever in memory
+ *
+ * Usage: java ModelMerger merged.model slice1.model slice2.model ...
+ */
+
+public class ModelMerger {
+    /**
+     * Where one input is in its vocabulary
+     */
+    private static class Cursor {
+        final Path path;
+        final DataInputStream in;
+
+        // tag names of the input, indexed by their id in the input
+        final String[] tags;
+
+        // words not read yet
+        int remaining;
+
+        // word read last and its tag ids and counts in the input, null once the vocabulary is done
+        String word;
+        int[] tagIds;
+        int[] counts;
+
+        Cursor(Path path, DataInputStream in, String[] tags, int remaining){
+            this.path = path;
+            this.in = in;
+            this.tags = tags;
+            this.remaining = remaining;
+        }
+
+        /**
+         * Read the next word of the vocabulary
+         * @throws IOException if the input can't be read, or its words aren't sorted
+         */
+        void advance() throws IOException {
+            if (remaining == 0) {
+                word = null;
+                return;
+            }
+            remaining--;
+
+            String previous = word;
+            word = in.readUTF();
+            if (previous != null && previous.compareTo(word) >= 0) {
+                throw new IOException("Vocabulary of " + path + " isn't sorted, save it again to merge it.");
+            }
+            int size = in.readInt();
+            tagIds = new int[size];
+            counts = new int[size];
+            for (int i = 0; i < size; i++) {
+                tagIds[i] = in.readInt();
+                counts[i] = in.readInt();
+            }
+        }
+    }
+
+    /**
+     * @param inputs model files to merge, all of the same kind
+     * @param output file to write the merged model to
+     * @throws IOException if an input can't be read or the output can't be written
+     */
+    public static void merge(List<Path> inputs, Path output) throws IOException {
+        if (inputs.isEmpty()) {
+            throw new IOException("Nothing to merge.");
+        }
+
+        // summed tag level counts, tags in the order they are first seen
+        Map<String, Integer> tagCounts = new LinkedHashMap<>();
+        Map<String, Map<String, Integer>> transitions = new LinkedHashMap<>();
+        Map<String, Map<String, Map<String, Integer>>> trigrams = new LinkedHashMap<>();
+
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            // read every input up to its vocabulary, adding its tag level counts
+            int kind = -1;
+            for (Path path : inputs) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+                Cursor cursor;
+                try {
+                    int inputKind = ModelFile.readKind(in);
+                    if (kind != -1 && inputKind != kind) {
+                        throw new IOException(path + " holds a different kind of model than " + inputs.get(0));
+                    }
+                    Map<String, Integer> inputTagCounts = new LinkedHashMap<>();
+                    String[] tags = ModelFile.readTags(in, inputTagCounts);
+                    for (String tag : tags) {
+                        tagCounts.put(tag, tagCounts.getOrDefault(tag, 0) + inputTagCounts.get(tag));
+                    }
+
+                    addTransitions(transitions, ModelFile.readTransitions(in, tags));
+                    if (inputKind == ModelFile.TRIGRAM) {
+                        Map<String, Map<String, Map<String, Integer>>> inputTrigrams = ModelFile.readTrigrams(in, tags);
+                        for (String previous : inputTrigrams.keySet()) {
+                            if (!trigrams.containsKey(previous)) {
+                                trigrams.put(previous, new LinkedHashMap<>());
+                            }
+                            addTransitions(trigrams.get(previous), inputTrigrams.get(previous));
+                        }
+                    }
+                    kind = inputKind;
+                    cursor = new Cursor(path, in, tags, in.readInt());
+                }
+                catch (IOException e) {
+                    in.close();
+                    throw e;
+                }
+                cursors.add(cursor);
+                cursor.advance();
+            }
+
+            // ids of the merged tags, in the order they are written
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+                ModelFile.writeHeader(out, kind);
+                Map<String, Integer> tagIds = ModelFile.writeTags(out, tagCounts);
+                ModelFile.writeTransitions(out, transitions, tagIds);
+                if (kind == ModelFile.TRIGRAM) {
+                    ModelFile.writeTrigrams(out, trigrams, tagIds);
+                }
+
+                // the number of words is only known at the end, leave room for it and fill it in afterwards
+                int numWordsOffset = out.size();
+                out.writeInt(0);
+                int numWords = mergeVocabulary(cursors, tagIds, out);
+                out.flush();
+
+                try (RandomAccessFile file = new RandomAccessFile(output.toFile(), "rw")) {
+                    file.seek(numWordsOffset);
+                    file.writeInt(numWords);
+                }
+            }
+        }
+        finally {
+            for (Cursor cursor : cursors) {
+                cursor.in.close();
+            }
+        }
+    }
+
+    /**
+     * @param counts map matching a tag with the amount of times it was followed by every other tag, added to
+     * @param more more counts of the same kind
+     */
+    private static void addTransitions(Map<String, Map<String, Integer>> counts, Map<String, Map<String, Integer>> more){
+        for (String from : more.keySet()) {
+            if (!counts.containsKey(from)) {
+                counts.put(from, new LinkedHashMap<>());
+            }
+            Map<String, Integer> followers = counts.get(from);
+            for (String to : more.get(from).keySet()) {
+                followers.put(to, followers.getOrDefault(to, 0) + more.get(from).get(to));
+            }
+        }
+    }
+
+    /**
+     * Write the words of every input in sorted order, summing the counts of a word found in several inputs
+     * @param cursors every input, positioned on its first word
+     * @param tagIds merged id of every tag
+     * @param out stream to write the words to
+     * @return number of words written
+     * @throws IOException if an input can't be read or the output can't be written
+     */
+    private static int mergeVocabulary(List<Cursor> cursors, Map<String, Integer> tagIds, DataOutputStream out) throws IOException {
+        // inputs by their current word
+        PriorityQueue<Cursor> queue = new PriorityQueue<>((a, b) -> a.word.compareTo(b.word));
+        for (Cursor cursor : cursors) {
+            if (cursor.word != null) {
+                queue.add(cursor);
+            }
+        }
+
+        // counts of the word being merged, by merged tag id
+        int[] counts = new int[tagIds.size()];
+        int numWords = 0;
+        while (!queue.isEmpty()) {
+            String word = queue.peek().word;
+
+            // take the word from every input that has it
+            while (!queue.isEmpty() && queue.peek().word.equals(word)) {
+                Cursor cursor = queue.poll();
+                for (int i = 0; i < cursor.tagIds.length; i++) {
+                    counts[tagIds.get(cursor.tags[cursor.tagIds[i]])] += cursor.counts[i];
+                }
+                cursor.advance();
+                if (cursor.word != null) {
+                    queue.add(cursor);
+                }
+            }
+
+            int size = 0;
+            for (int count : counts) {
+                if (count != 0) {
+                    size++;
+                }
+            }
+            out.writeUTF(word);
+            out.writeInt(size);
+            for (int tag = 0; tag < counts.length; tag++) {
+                if (counts[tag] != 0) {
+                    out.writeInt(tag);
+                    out.writeInt(counts[tag]);
+                    counts[tag] = 0;
+                }
+            }
+            numWords++;
+        }
+        return numWords;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java ModelMerger merged.model slice1.model slice2.model ...");
+            return;
+        }
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            inputs.add(Paths.get(args[i]));
+        }
+        try {
+            merge(inputs, Paths.get(args[0]));
+        }
+        catch (IOException e) {
+            System.err.println("Cannot merge model files.\n" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+
+/**
+ * Forward Viterbi columns of the sentences decoded lately, by sentence prefix, so a sentence that grows one word
+ * at a time, like one being typed, only has the new words to decode
+ * Every column links to the column of the prefix one word shorter, which is how the backpointers of the whole
+ * prefix are found again, so a cached prefix only takes one column more than the prefix it extends
+ * The least recently used prefixes are evicted once the columns go over a memory cap. An evicted column stays
+ * reachable from the longer prefixes that extend it, so every prefix is charged for its whole chain of columns:
+ * shared columns are counted more than once, and the memory actually held never goes over the cap
+ * Columns are only valid for the model and pruning they were decoded with, the cache empties itself when either changes
+ */
+
+public class PrefixCache {
+    // memory cap used when none is given
+    public static final long DEFAULT_BYTES = 8L << 20;
+
+    /**
+     * Scores of every tag after the last word of a prefix, and where every tag came from
+     * Never modified once built
+     */
+    public static class Column {
+        // column of the prefix one word shorter, null for the start of the sentence
+        public final Column previous;
+
+        // number of words in the prefix
+        public final int numWords;
+
+        // score of every tag after the last word, negative infinity if the tag can't be reached
+        public final double[] scores;
+
+        // for every tag, the tag of the previous word it came from, null for the start of the sentence
+        public final int[] backTrack;
+
+        public Column(Column previous, double[] scores, int[] backTrack){
+            this.previous = previous;
+            this.numWords = previous == null ? 0 : previous.numWords + 1;
+            this.scores = scores;
+            this.backTrack = backTrack;
+        }
+    }
+
+    // most recently used prefix last
+    private final LinkedHashMap<String, Column> columns = new LinkedHashMap<>(64, 0.75f, true);
+
+    // rough number of bytes held by the cached columns, and the most it can get to
+    private long bytes = 0;
+    private final long maxBytes;
+
+    // model and pruning the cached columns were decoded with
+    private TaggerModel model;
+    private boolean prune;
+
+    /**
+     * Constructor no parameters, capped at DEFAULT_BYTES
+     */
+    public PrefixCache(){
+        this(DEFAULT_BYTES);
+    }
+
+    /**
+     * @param maxBytes rough number of bytes the cached columns may take, the least recently used are evicted past it
+     */
+    public PrefixCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param model model the column must have been decoded with
+     * @param prune whether the column must have been decoded with pruning
+     * @param prefix lower case sentence prefix, up to the end of its last word
+     * @return the column after the last word of the prefix, or null if it isn't cached
+     */
+    public synchronized Column get(TaggerModel model, boolean prune, String prefix){
+        if (model != this.model || prune != this.prune) {
+            clear();
+            this.model = model;
+            this.prune = prune;
+            return null;
+        }
+        return columns.get(prefix);
+    }
+
+    /**
+     * @param model model the column was decoded with
+     * @param prune whether the column was decoded with pruning
+     * @param prefix lower case sentence prefix, up to the end of its last word
+     * @param column the column after the last word of the prefix
+     */
+    public synchronized void put(TaggerModel model, boolean prune, String prefix, Column column){
+        if (model != this.model || prune != this.prune) {
+            return;
+        }
+        Column replaced = columns.put(prefix, column);
+        if (replaced != null) {
+            bytes -= bytes(prefix, replaced);
+        }
+        bytes += bytes(prefix, column);
+
+        // evict the least recently used prefixes until the columns fit again
+        Iterator<Map.Entry<String, Column>> eldest = columns.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Column> entry = eldest.next();
+            bytes -= bytes(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Forget every cached column
+     */
+    public synchronized void clear(){
+        columns.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return number of prefixes cached
+     */
+    public synchronized int size(){
+        return columns.size();
+    }
+
+    /**
+     * @param prefix key of a column
+     * @param column a column
+     * @return rough number of bytes kept alive by the key, the map entry, the column and every column before it
+     */
+    private static long bytes(String prefix, Column column){
+        long columnBytes = 32 + 16 + 8L * column.scores.length + 16 + 4L * column.scores.length;
+        return 40 + 16 + prefix.length() + 40 + (column.numWords + 1) * columnBytes;
+    }
+}
@@ -0,0 +1,298 @@
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Compact version of a DenseModel for taggers embedded where memory is tight
+ * Every log probability is stored as a 16 bit or 8 bit code with one scale per table, a code is how many steps
+ * of the scale the score is below 0, and the largest code stands for a transition that was never seen
+ * Emission rows are kept one after the other in flat arrays instead of one array per word, and rare words
+ * can be left out, in which case they are tagged like any unknown word
+ * Decoders read the codes directly, there is no table of doubles behind them
+ */
+
+public class QuantizedModel implements TaggerModel {
+    // tag names indexed by their id
+    public final String[] tags;
+
+    // map matching a tag name to its id
+    public final Map<String, Integer> tagIds;
+
+    // id of the start of sentence tag
+    public final int start;
+
+    // bits per code, 16 or 8
+    public final int bits;
+
+    // code of a transition that was never seen, every other code is below it
+    private final int never;
+
+    // size of one step of the codes of each table
+    private final double transitionScale;
+    private final double emissionScale;
+
+    // code of the transition from tag i to tag j at i * tags.length + j, only the array matching bits is used
+    private final short[] transitionShorts;
+    private final byte[] transitionBytes;
+
+    // every word kept, interned to an id
+    public final Vocabulary vocabulary;
+
+    // the row of word id goes from rowStarts[id] to rowStarts[id + 1] in rowTags and the emission codes
+    private final int[] rowStarts;
+
+    // tag ids of every row, in increasing order within a row
+    private final short[] rowTags;
+
+    // code of the log probability of the word given the tag, only the array matching bits is used
+    private final short[] emissionShorts;
+    private final byte[] emissionBytes;
+
+    // ids of the tags an unknown word is likely to have
+    private final int[] openClassTags;
+
+    /**
+     * @param dense model to quantize
+     * @param bits bits per code, 16 or 8
+     * @param keep whether to keep a word, the others are tagged like unknown words
+     */
+    private QuantizedModel(DenseModel dense, int bits, Predicate<String> keep){
+        if (bits != 16 && bits != 8) {
+            throw new IllegalArgumentException("Codes must be 16 or 8 bits, not " + bits);
+        }
+        if (dense.tags.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many tags to quantize: " + dense.tags.length);
+        }
+        this.tags = dense.tags;
+        this.tagIds = dense.tagIds;
+        this.start = dense.start;
+        this.bits = bits;
+        this.never = (1 << bits) - 1;
+        this.openClassTags = dense.openClassTags;
+
+        // the transitions, flattened
+        int numTags = tags.length;
+        double[] transitions = new double[numTags * numTags];
+        for (int from = 0; from < numTags; from++) {
+            System.arraycopy(dense.transitions[from], 0, transitions, from * numTags, numTags);
+        }
+
+        // the rows of the words that are kept, one after the other
+        int numWords = 0;
+        int numEntries = 0;
+        for (int id = 0; id < dense.vocabulary.size(); id++) {
+            if (keep.test(dense.vocabulary.word(id))) {
+                numWords++;
+                numEntries += dense.emissionTags[id].length;
+            }
+        }
+        vocabulary = new Vocabulary(numWords);
+        rowStarts = new int[numWords + 1];
+        rowTags = new short[numEntries];
+        double[] emissions = new double[numEntries];
+        int entry = 0;
+        for (int id = 0; id < dense.vocabulary.size(); id++) {
+            String word = dense.vocabulary.word(id);
+            if (!keep.test(word)) {
+                continue;
+            }
+            int wordId = vocabulary.intern(word);
+            rowStarts[wordId] = entry;
+            for (int i = 0; i < dense.emissionTags[id].length; i++) {
+                rowTags[entry] = (short) dense.emissionTags[id][i];
+                emissions[entry++] = dense.emissionScores[id][i];
+            }
+            rowStarts[wordId + 1] = entry;
+        }
+
+        transitionScale = scale(transitions);
+        emissionScale = scale(emissions);
+        if (bits == 16) {
+            transitionShorts = new short[transitions.length];
+            emissionShorts = new short[emissions.length];
+            for (int i = 0; i < transitions.length; i++) {
+                transitionShorts[i] = (short) encode(transitions[i], transitionScale);
+            }
+            for (int i = 0; i < emissions.length; i++) {
+                emissionShorts[i] = (short) encode(emissions[i], emissionScale);
+            }
+            transitionBytes = null;
+            emissionBytes = null;
+        }
+        else {
+            transitionBytes = new byte[transitions.length];
+            emissionBytes = new byte[emissions.length];
+            for (int i = 0; i < transitions.length; i++) {
+                transitionBytes[i] = (byte) encode(transitions[i], transitionScale);
+            }
+            for (int i = 0; i < emissions.length; i++) {
+                emissionBytes[i] = (byte) encode(emissions[i], emissionScale);
+            }
+            transitionShorts = null;
+            emissionShorts = null;
+        }
+    }
+
+    /**
+     * Quantize a compiled model
+     * @param dense model to quantize
+     * @param bits bits per code, 16 or 8
+     * @param keep whether to keep a word, the others are dropped and tagged like unknown words
+     * @return model with the same tags and the kept words, reading its scores from the codes
+     */
+    public static QuantizedModel fromDense(DenseModel dense, int bits, Predicate<String> keep){
+        return new QuantizedModel(dense, bits, keep);
+    }
+
+    /**
+     * @param scores log probabilities of a table, negative infinity for the ones never seen
+     * @return size of one step, so that the lowest score gets the code right below the one for never seen
+     */
+    private double scale(double[] scores){
+        double lowest = 0;
+        for (double score : scores) {
+            if (score != Double.NEGATIVE_INFINITY) {
+                lowest = Math.min(lowest, score);
+            }
+        }
+        return lowest == 0 ? 1 : -lowest / (never - 1);
+    }
+
+    /**
+     * @param score a log probability, or negative infinity
+     * @param scale size of one step of the table
+     * @return its code
+     */
+    private int encode(double score, double scale){
+        if (score == Double.NEGATIVE_INFINITY) {
+            return never;
+        }
+        return (int) Math.min(never - 1, Math.round(-score / scale));
+    }
+
+    /**
+     * @param i index of a transition, from * tags.length + to
+     * @return the code of the transition
+     */
+    private int transitionCode(int i){
+        return bits == 16 ? transitionShorts[i] & 0xFFFF : transitionBytes[i] & 0xFF;
+    }
+
+    /**
+     * @param i index of an emission entry
+     * @return the log probability of the entry
+     */
+    private double emission(int i){
+        int code = bits == 16 ? emissionShorts[i] & 0xFFFF : emissionBytes[i] & 0xFF;
+        return -code * emissionScale;
+    }
+
+    /**
+     * @return rough number of bytes taken on the heap by the tables and the vocabulary, not counting the tag names
+     */
+    public long approximateBytes(){
+        int codeBytes = bits / 8;
+        return vocabulary.approximateBytes()
+                + 16 + 4L * rowStarts.length
+                + 16 + 2L * rowTags.length
+                + 16 + (long) codeBytes * rowTags.length
+                + 16 + (long) codeBytes * tags.length * tags.length
+                + 16 + 4L * openClassTags.length;
+    }
+
+    @Override
+    public int numTags(){
+        return tags.length;
+    }
+
+    @Override
+    public String tagName(int id){
+        return tags[id];
+    }
+
+    @Override
+    public int startTag(){
+        return start;
+    }
+
+    @Override
+    public int tagId(String tag){
+        Integer id = tagIds.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public double transition(int from, int to){
+        int code = transitionCode(from * tags.length + to);
+        return code == never ? Double.NEGATIVE_INFINITY : -code * transitionScale;
+    }
+
+    @Override
+    public double transitionScore(int from, int to){
+        double score = transition(from, to);
+        return score == Double.NEGATIVE_INFINITY ? DenseModel.UNSEEN : score;
+    }
+
+    @Override
+    public double observationScore(String word, int tag){
+        int wordId = vocabulary.find(word);
+        if (wordId == -1) {
+            return DenseModel.UNSEEN;
+        }
+        // binary search the row of the word for the tag
+        int low = rowStarts[wordId];
+        int high = rowStarts[wordId + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (rowTags[middle] < tag) {
+                low = middle + 1;
+            }
+            else if (rowTags[middle] > tag) {
+                high = middle - 1;
+            }
+            else {
+                return emission(middle);
+            }
+        }
+        return DenseModel.UNSEEN;
+    }
+
+    @Override
+    public void observationScores(String word, double[] scores){
+        scatter(vocabulary.find(word), scores);
+    }
+
+    @Override
+    public void observationScores(String sentence, int start, int end, double[] scores){
+        scatter(vocabulary.find(sentence, start, end), scores);
+    }
+
+    @Override
+    public int candidateTags(String sentence, int start, int end, int[] candidates){
+        int wordId = vocabulary.find(sentence, start, end);
+        if (wordId == -1) {
+            System.arraycopy(openClassTags, 0, candidates, 0, openClassTags.length);
+            return openClassTags.length;
+        }
+        int from = rowStarts[wordId];
+        int to = rowStarts[wordId + 1];
+        for (int i = from; i < to; i++) {
+            candidates[i - from] = rowTags[i];
+        }
+        return to - from;
+    }
+
+    /**
+     * @param wordId id of a word, or -1 for a word that was never seen or was dropped
+     * @param scores array of length numTags() to fill with the observation score of the word for every tag
+     */
+    private void scatter(int wordId, double[] scores){
+        Arrays.fill(scores, DenseModel.UNSEEN);
+        if (wordId == -1) {
+            return;
+        }
+        // scatter the sparse row of the word
+        for (int i = rowStarts[wordId]; i < rowStarts[wordId + 1]; i++) {
+            scores[rowTags[i]] = emission(i);
+        }
+    }
+}
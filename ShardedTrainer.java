@@ -0,0 +1,333 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Count a pair of sentence and tag files on several threads
+ * Both files are cut into shards covering the same ranges of lines, every shard is counted by its own thread into
+ * primitive CountTables keyed by int ids, and the shards are then merged into the taggers' maps in file order
+ * Entries of a CountTable are kept in the order they were first seen, so merging shard after shard adds every
+ * key to the maps in the same order, and with the same counts, as counting the files on a single thread
+ * Counts are added with get and put like trainMachine does, since merge and compute put new keys in a different order
+ * Edges of the graph are added shard after shard with their summed counts, so only their order in the graph can
+ * differ from counting on a single thread, never their labels
+ */
+
+public class ShardedTrainer {
+    // lines between two places the files can be cut at
+    private static final int CHUNK_LINES = 1024;
+
+    // tag codes of the start markers, the tags of the file come after
+    private static final int BEFORE_START = 0, START = 1, FIRST_TAG = 2;
+
+    // bits of every tag code in a packed key
+    private static final int TAG_BITS = 21;
+
+    /**
+     * Counts of a range of lines of both files
+     */
+    public static class Shard {
+        // readers of the range, kept to look up the interned tokens after counting
+        final CorpusReader words, tags;
+
+        // number of sentences in the range
+        int sentences = 0;
+
+        // tag code -> count, (current, next) -> count, (previous, current, next) -> count, (word id, tag code) -> count
+        final CountTable tagCounts = new CountTable();
+        final CountTable bigrams = new CountTable();
+        final CountTable trigrams = new CountTable();
+        final CountTable emissions = new CountTable();
+
+        // every tag code in the order SudiEC adds it as a key of pairToNextMap
+        final CountTable contexts = new CountTable();
+
+        /**
+         * @param words reader of the sentence file, already at the first line of the range
+         * @param tags reader of the tag file, already at the first line of the range
+         */
+        Shard(CorpusReader words, CorpusReader tags){
+            this.words = words;
+            this.tags = tags;
+        }
+
+        /**
+         * @param code a tag code
+         * @return name of the tag
+         */
+        String tagName(int code){
+            if (code == BEFORE_START) {
+                return "@";
+            }
+            if (code == START) {
+                return "#";
+            }
+            return tags.string(code - FIRST_TAG);
+        }
+
+        /**
+         * Add the tag, transition and observation counts to the maps of Sudi and SudiTrigram, the same way their trainMachine does
+         * @param graph graph with tags as vertices and transition frequencies as edges
+         * @param tagCounts number of times every tag has been seen, with # already a key
+         * @param observations map matching a word with the amount of times it has been seen with every tag
+         */
+        private void mergeTags(Graph<String, Integer> graph, Map<String, Integer> tagCounts,
+                               Map<String, Map<String, Integer>> observations){
+            tagCounts.put("#", tagCounts.get("#") + sentences);
+
+            for (int e = 0; e < this.tagCounts.size(); e++) {
+                String tag = tagName((int) this.tagCounts.key(e));
+                if (!graph.hasVertex(tag)) {
+                    graph.insertVertex(tag);
+                    tagCounts.put(tag, 0);
+                }
+                tagCounts.put(tag, tagCounts.get(tag) + this.tagCounts.count(e));
+            }
+
+            for (int e = 0; e < bigrams.size(); e++) {
+                long key = bigrams.key(e);
+                String current = tagName(unpack(key, 1));
+                String next = tagName(unpack(key, 0));
+                if (!graph.hasEdge(current, next)) {
+                    graph.insertDirected(current, next, bigrams.count(e));
+                }
+                else {
+                    int label = graph.getLabel(current, next) + bigrams.count(e);
+                    graph.removeDirected(current, next);
+                    graph.insertDirected(current, next, label);
+                }
+            }
+
+            mergeObservations(observations);
+        }
+
+        /**
+         * Add the counts to the maps of SudiEC, the same way its trainMachine does
+         * @param pairToNext map matching (previous, current) with the amount of times every next tag followed them
+         * @param pairs map matching a tag with the amount of times it was followed by every other tag
+         * @param observations map matching a word with the amount of times it has been seen with every tag
+         * @param tagCounts number of times every tag has been seen, with @ and # already keys
+         */
+        private void mergeCounts(Map<String, Map<String, Map<String, Integer>>> pairToNext, Map<String, Map<String, Integer>> pairs,
+                                 Map<String, Map<String, Integer>> observations, Map<String, Integer> tagCounts){
+            pairs.get("@").put("#", pairs.get("@").get("#") + sentences);
+            tagCounts.put("@", tagCounts.get("@") + sentences);
+            tagCounts.put("#", tagCounts.get("#") + sentences);
+
+            for (int e = 0; e < this.tagCounts.size(); e++) {
+                String tag = tagName((int) this.tagCounts.key(e));
+                tagCounts.put(tag, tagCounts.getOrDefault(tag, 0) + this.tagCounts.count(e));
+                if (!pairs.containsKey(tag)) {
+                    pairs.put(tag, new HashMap<>());
+                }
+            }
+
+            for (int e = 0; e < bigrams.size(); e++) {
+                long key = bigrams.key(e);
+                add(pairs.get(tagName(unpack(key, 1))), tagName(unpack(key, 0)), bigrams.count(e));
+            }
+
+            for (int e = 0; e < contexts.size(); e++) {
+                String tag = tagName((int) contexts.key(e));
+                if (!pairToNext.containsKey(tag)) {
+                    pairToNext.put(tag, new HashMap<>());
+                }
+            }
+
+            for (int e = 0; e < trigrams.size(); e++) {
+                long key = trigrams.key(e);
+                Map<String, Map<String, Integer>> afterPrevious = pairToNext.get(tagName(unpack(key, 2)));
+                String current = tagName(unpack(key, 1));
+                if (!afterPrevious.containsKey(current)) {
+                    afterPrevious.put(current, new HashMap<>());
+                }
+                add(afterPrevious.get(current), tagName(unpack(key, 0)), trigrams.count(e));
+            }
+
+            mergeObservations(observations);
+        }
+
+        /**
+         * @param observations map matching a word with the amount of times it has been seen with every tag
+         */
+        private void mergeObservations(Map<String, Map<String, Integer>> observations){
+            for (int e = 0; e < emissions.size(); e++) {
+                long key = emissions.key(e);
+                String word = words.string((int) (key >>> 32));
+                if (!observations.containsKey(word)) {
+                    observations.put(word, new HashMap<>());
+                }
+                add(observations.get(word), tagName((int) key), emissions.count(e));
+            }
+        }
+
+        /**
+         * Add to a count with get and put
+         * @param counts map of counts
+         * @param key key whose count to increase, starting from 0
+         * @param amount amount to add
+         */
+        private static void add(Map<String, Integer> counts, String key, int amount){
+            Integer count = counts.get(key);
+            counts.put(key, count == null ? amount : count + amount);
+        }
+    }
+
+    /**
+     * Add the counts of every shard to the maps of Sudi and SudiTrigram, the same way their trainMachine does
+     * @param shards counted shards in file order
+     * @param graph graph with tags as vertices and transition frequencies as edges
+     * @param tagCounts number of times every tag has been seen, with # already a key
+     * @param observations map matching a word with the amount of times it has been seen with every tag
+     */
+    public static void mergeInto(List<Shard> shards, Graph<String, Integer> graph, Map<String, Integer> tagCounts,
+                                 Map<String, Map<String, Integer>> observations){
+        for (Shard shard : shards) {
+            shard.mergeTags(graph, tagCounts, observations);
+        }
+    }
+
+    /**
+     * Add the counts of every shard to the maps of SudiEC, the same way its trainMachine does
+     * @param shards counted shards in file order
+     * @param pairToNext map matching (previous, current) with the amount of times every next tag followed them
+     * @param pairs map matching a tag with the amount of times it was followed by every other tag
+     * @param observations map matching a word with the amount of times it has been seen with every tag
+     * @param tagCounts number of times every tag has been seen, with @ and # already keys
+     */
+    public static void mergeInto(List<Shard> shards, Map<String, Map<String, Map<String, Integer>>> pairToNext,
+                                 Map<String, Map<String, Integer>> pairs, Map<String, Map<String, Integer>> observations,
+                                 Map<String, Integer> tagCounts){
+        for (Shard shard : shards) {
+            shard.mergeCounts(pairToNext, pairs, observations, tagCounts);
+        }
+    }
+
+    /**
+     * Cut both files into shards and count every shard on its own thread
+     * @param sentenceFile file with words
+     * @param tagFile file with parts of speech for corresponding words
+     * @param workers number of threads, and of shards
+     * @param countTrigrams whether to count (previous, current, next) too, only SudiEC needs them
+     * @return the counted shards in file order
+     * @throws IOException if either file can't be read
+     */
+    public static List<Shard> count(String sentenceFile, String tagFile, int workers, boolean countTrigrams) throws IOException {
+        // walk both files together once, remembering where every chunk of lines starts in each
+        List<long[]> chunks = new ArrayList<>();
+        int numLines = 0;
+        try (CorpusReader words = CorpusReader.open(sentenceFile); CorpusReader tags = CorpusReader.open(tagFile)) {
+            while (true) {
+                if (numLines % CHUNK_LINES == 0) {
+                    chunks.add(new long[]{words.position(), tags.position()});
+                }
+                if (!words.nextLine() || !tags.nextLine()) {
+                    break;
+                }
+                numLines++;
+            }
+        }
+
+        // give every worker an even number of chunks
+        int numShards = Math.max(1, Math.min(workers, chunks.size()));
+        ExecutorService threads = Executors.newFixedThreadPool(numShards);
+        try {
+            List<Future<Shard>> futures = new ArrayList<>();
+            for (int s = 0; s < numShards; s++) {
+                int firstChunk = (int) ((long) chunks.size() * s / numShards);
+                int lastChunk = (int) ((long) chunks.size() * (s + 1) / numShards);
+                long[] start = chunks.get(firstChunk);
+                int lines = Math.min(lastChunk * CHUNK_LINES, numLines) - firstChunk * CHUNK_LINES;
+                futures.add(threads.submit(() -> countShard(sentenceFile, tagFile, start, lines, countTrigrams)));
+            }
+
+            List<Shard> shards = new ArrayList<>();
+            for (Future<Shard> future : futures) {
+                shards.add(future.get());
+            }
+            return shards;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while training.");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Count a range of lines of both files
+     * @param sentenceFile file with words
+     * @param tagFile file with parts of speech for corresponding words
+     * @param start position of the first line in the sentence file and in the tag file
+     * @param lines number of lines to count
+     * @param countTrigrams whether to count (previous, current, next) too
+     * @return the counts of the range
+     * @throws IOException if either file can't be read
+     */
+    private static Shard countShard(String sentenceFile, String tagFile, long[] start, int lines, boolean countTrigrams)
+            throws IOException {
+        try (CorpusReader words = CorpusReader.open(sentenceFile); CorpusReader tags = CorpusReader.open(tagFile)) {
+            words.seek(start[0]);
+            tags.seek(start[1]);
+            Shard shard = new Shard(words, tags);
+
+            for (int l = 0; l < lines && words.nextLine() && tags.nextLine(); l++) {
+                int numTags = tags.split();
+                words.split();
+
+                // for every sentence start with the start of sentence indicator (#), preceded by @
+                shard.sentences++;
+                int previous = BEFORE_START;
+                int current = START;
+
+                for (int i = 0; i < numTags; i++) {
+                    int next = tags.tokenId(i, false) + FIRST_TAG;
+                    int word = words.tokenId(i, true);
+
+                    shard.tagCounts.add(next, 1);
+                    shard.bigrams.add(pack(0, current, next), 1);
+                    if (countTrigrams) {
+                        shard.contexts.add(next, 0);
+                        shard.contexts.add(previous, 0);
+                        shard.trigrams.add(pack(previous, current, next), 1);
+                    }
+                    shard.emissions.add(((long) word << 32) | next, 1);
+
+                    previous = current;
+                    current = next;
+                }
+            }
+            return shard;
+        }
+    }
+
+    /**
+     * @param first tag code in the highest position
+     * @param second tag code in the middle position
+     * @param third tag code in the lowest position
+     * @return the three codes packed in a key
+     */
+    private static long pack(int first, int second, int third){
+        return ((long) first << (2 * TAG_BITS)) | ((long) second << TAG_BITS) | third;
+    }
+
+    /**
+     * @param key packed key
+     * @param position 0 for the lowest tag code, 2 for the highest
+     * @return the tag code in that position
+     */
+    private static int unpack(long key, int position){
+        return (int) (key >>> (position * TAG_BITS)) & ((1 << TAG_BITS) - 1);
+    }
+}
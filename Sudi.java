@@ -1,5 +1,7 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Lizzie Hernandez Videa
@@ -15,6 +17,12 @@ public class Sudi {
     public static boolean brownTest = false;
     public static boolean test1 = false;
     public static boolean shortenedBrown = false;
+    public static boolean maxPlusBenchmark = false;
+    public static boolean quantizationBenchmark = false;
+    public static boolean beamBenchmark = false;
+
+    // arguments of the streaming mode
+    private static final String PIPE_USAGE = "Usage: java Sudi --pipe [--words] [--prune] [--workers N] [--model file] < sentences > tags";
 
 
     // graph with tags as vertices and transitions frequencies between tags as edges
@@ -26,6 +34,39 @@ public class Sudi {
     // map matching a word with all its possible tags and the amount of times it has been seen with that tag
     public Map<String, Map<String, Integer>> observationsMap;
 
+    // frozen int-indexed copy of the counts above, rebuilt by compile() after training, or a memory-mapped model file
+    // never modified once built, decoders read whichever snapshot is here when they start a sentence
+    public volatile TaggerModel model;
+
+    // publish a new snapshot after this many sentences have been added with addSentence, 0 to never do it on a count
+    public int publishAfter = 1000;
+
+    // sentences added since the last snapshot was published
+    private int pendingSentences = 0;
+
+    // bits and minimum word count quantize() was last called with, bits 0 when snapshots aren't quantized
+    private int quantizedBits = 0;
+    private int quantizedMinWordCount = 1;
+
+    // true for a model memory-mapped by loadMapped(), which has no counts behind it
+    private boolean mapped = false;
+
+    // publishes new snapshots on a schedule, null unless startPublishing() was called
+    private ScheduledExecutorService publisher;
+
+    // when true, decoding only expands the tags a known word was seen with, or the open class tags for unknown words
+    public boolean pruneTags = false;
+
+    // number of threads trainMachine counts with and determineTags decodes with, 1 does everything on the calling thread
+    public int workers = 1;
+
+    // words of every tag sorted by observation score, for predictNext, rebuilt when the model changes
+    private TagWordIndex wordIndex;
+
+    // forward columns of the sentences decoded lately by prefix, for sentences typed one word at a time
+    // null to decode every sentence from the start
+    public PrefixCache prefixCache = null;
+
     /**
      *  Constructor no parameters
      */
@@ -40,92 +81,362 @@ public class Sudi {
      * @param originalFileName File with words
      * @param tagFileName File with parts of speech for corresponding words
      */
-    public void trainMachine(String originalFileName, String tagFileName){
-        BufferedReader input1;
-        BufferedReader input2;
+    public synchronized void trainMachine(String originalFileName, String tagFileName){
+        requireCounts("trainMachine");
+        // decoders keep using the current snapshot while the counts change, until compile() replaces it
 
-        // Open both files, if possible
-        try {
-            input1 = new BufferedReader(new FileReader(originalFileName));
-            input2 = new BufferedReader(new FileReader(tagFileName));
-        }
-        catch (FileNotFoundException e) {
-            System.err.println("Cannot open file.\n" + e.getMessage());
-            return;
-        }
         // try reading both files
         try {
             // insert a start vertex indicating the beginning of a sentence
             tagProbabilityGraph.insertVertex("#");
             sentenceNumPassingThrough.put("#", 0);
 
-            String words;       // words read from original file
-            String states;      // tags read from parts of speech file
-            while ((words = input1.readLine())!= null&&(states = input2.readLine())!= null) {
-                String[] partsOfSpeech = states.split(" ");
-                String[] correspondingWords = words.split(" ");
-
-                // for every sentence start with the start of sentence indicator (#)
-                String current = "#";
-                // increase # for the number of sentences seen
-                sentenceNumPassingThrough.put(current, sentenceNumPassingThrough.get(current)+1);
-
-                // loop through words and corresponding parts of speech in a sentence
-                int i = 0;
-                while(i<partsOfSpeech.length){
-                    // get a word and its corresponding tag
-                    String tag = partsOfSpeech[i];
-                    String word = correspondingWords[i].toLowerCase();
-
-                    // if the tag has never been seen before, add it to the graph
-                    if(!tagProbabilityGraph.hasVertex(tag)){
-                        tagProbabilityGraph.insertVertex(tag);
-                        sentenceNumPassingThrough.put(tag, 0);
+            if (workers > 1) {
+                // count ranges of lines on separate threads, then merge them in order, which gives the same counts
+                List<ShardedTrainer.Shard> shards = ShardedTrainer.count(originalFileName, tagFileName, workers, false);
+                ShardedTrainer.mergeInto(shards, tagProbabilityGraph, sentenceNumPassingThrough, observationsMap);
+            }
+            else {
+                // only the single threaded count reads the files here, every line is split in place
+                // and tokens are interned straight from the mapped files
+                try (CorpusReader input1 = CorpusReader.open(originalFileName);
+                     CorpusReader input2 = CorpusReader.open(tagFileName)) {
+                    while (input1.nextLine() && input2.nextLine()) {
+                        countSentence(input1, input2);
                     }
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("IO error while reading.\n" + e.getMessage());
+        }
 
-                    // increment the count of times a vertex has been seen by one
-                    sentenceNumPassingThrough.put(tag, sentenceNumPassingThrough.get(tag)+1);
+        // freeze the counts so that decoding only reads arrays
+        compile();
+    }
 
-                    // if there wasn't a connection between current tag and next tag, add a connection with frequency 1
-                    if(!tagProbabilityGraph.hasEdge(current, tag)){
-                        tagProbabilityGraph.insertDirected(current, tag, 1);
-                    }
-                    // else increment the frequency of transitioning from word to another by 1
-                    else {
-                        int label = tagProbabilityGraph.getLabel(current, tag) + 1;
-                        tagProbabilityGraph.removeDirected(current, tag);
-                        tagProbabilityGraph.insertDirected(current, tag, label);
-                    }
+    /**
+     * Count the sentence both readers are on, the start vertex must already be there
+     * Every line is split in place, tokens are interned straight from the mapped files
+     * @param words reader on the line of words
+     * @param tags reader on the line of their tags
+     */
+    private void countSentence(CorpusReader words, CorpusReader tags){
+        int numTags = tags.split();
+        words.split();
+
+        // for every sentence start with the start of sentence indicator (#)
+        String current = "#";
+        // increase # for the number of sentences seen
+        sentenceNumPassingThrough.put(current, sentenceNumPassingThrough.get(current)+1);
+
+        // loop through words and corresponding parts of speech in a sentence
+        int i = 0;
+        while(i<numTags){
+            // get a word and its corresponding tag
+            String tag = tags.token(i, false);
+            String word = words.token(i, true);
+            countTag(current, tag, word);
+
+            // advance through other words in the sentence
+            current = tag;
+            i ++;
 
-                    // if the word hadn't already been seen, add it to observations
-                    if(!observationsMap.containsKey(word)){
-                        observationsMap.put(word, new HashMap<>());
-                    }
-                    // if the word hadn't already been seen with this tag, add the taag to it's map of possible tags
-                    if(!observationsMap.get(word).containsKey(tag)){
-                        observationsMap.get(word).put(tag, 0);
-                    }
-                    // increment the frequency by which the word has been seen with this tag by 1
-                    observationsMap.get(word).put(tag, observationsMap.get(word).get(tag) + 1);
+        }
+    }
 
-                    // advance through other words in the sentence
-                    current = tag;
-                    i ++;
+    /**
+     * Count one tag of a training sentence
+     * @param current tag before it, # at the start of the sentence
+     * @param tag the tag
+     * @param word the word it tags, already in lower case
+     */
+    private void countTag(String current, String tag, String word){
+        // if the tag has never been seen before, add it to the graph
+        if(!tagProbabilityGraph.hasVertex(tag)){
+            tagProbabilityGraph.insertVertex(tag);
+            sentenceNumPassingThrough.put(tag, 0);
+        }
 
-                }
+        // increment the count of times a vertex has been seen by one
+        sentenceNumPassingThrough.put(tag, sentenceNumPassingThrough.get(tag)+1);
+
+        // if there wasn't a connection between current tag and next tag, add a connection with frequency 1
+        if(!tagProbabilityGraph.hasEdge(current, tag)){
+            tagProbabilityGraph.insertDirected(current, tag, 1);
+        }
+        // else increment the frequency of transitioning from word to another by 1
+        else {
+            int label = tagProbabilityGraph.getLabel(current, tag) + 1;
+            tagProbabilityGraph.removeDirected(current, tag);
+            tagProbabilityGraph.insertDirected(current, tag, label);
+        }
+
+        // if the word hadn't already been seen, add it to observations
+        if(!observationsMap.containsKey(word)){
+            observationsMap.put(word, new HashMap<>());
+        }
+        // if the word hadn't already been seen with this tag, add the taag to it's map of possible tags
+        if(!observationsMap.get(word).containsKey(tag)){
+            observationsMap.get(word).put(tag, 0);
+        }
+        // increment the frequency by which the word has been seen with this tag by 1
+        observationsMap.get(word).put(tag, observationsMap.get(word).get(tag) + 1);
+    }
+
+    /**
+     * Add one more labeled sentence to the counts, without training again from scratch
+     * Decoders keep using the current snapshot, a new one is published after publishAfter sentences,
+     * on the schedule given to startPublishing(), or when publish() is called
+     * @param words sentence, words separated by single spaces
+     * @param tags tag of every word, separated by single spaces
+     */
+    public synchronized void addSentence(String words, String tags){
+        requireCounts("addSentence");
+        String[] partsOfSpeech = tags.split(" ");
+        String[] correspondingWords = words.split(" ");
+
+        // make sure the start vertex is there, without resetting its count like trainMachine does
+        if (!tagProbabilityGraph.hasVertex("#")) {
+            tagProbabilityGraph.insertVertex("#");
+            sentenceNumPassingThrough.put("#", 0);
+        }
+        sentenceNumPassingThrough.put("#", sentenceNumPassingThrough.get("#")+1);
+
+        String current = "#";
+        for (int i = 0; i < partsOfSpeech.length; i++) {
+            countTag(current, partsOfSpeech[i], correspondingWords[i].toLowerCase());
+            current = partsOfSpeech[i];
+        }
+
+        pendingSentences++;
+        if (publishAfter > 0 && pendingSentences >= publishAfter) {
+            publish();
+        }
+    }
+
+    /**
+     * Add every sentence of a pair of files to the counts, tokenized the way trainMachine does it,
+     * then publish a single new snapshot, however many sentences there were
+     * @param originalFileName File with words
+     * @param tagFileName File with parts of speech for corresponding words
+     */
+    public synchronized void addCorpus(String originalFileName, String tagFileName){
+        requireCounts("addCorpus");
+        // make sure the start vertex is there, without resetting its count like trainMachine does
+        if (!tagProbabilityGraph.hasVertex("#")) {
+            tagProbabilityGraph.insertVertex("#");
+            sentenceNumPassingThrough.put("#", 0);
+        }
+
+        try (CorpusReader input1 = CorpusReader.open(originalFileName); CorpusReader input2 = CorpusReader.open(tagFileName)) {
+            while (input1.nextLine() && input2.nextLine()) {
+                countSentence(input1, input2);
             }
         }
         catch (IOException e) {
             System.err.println("IO error while reading.\n" + e.getMessage());
         }
+        publish();
+    }
 
-        // Close both files, if possible
+    /**
+     * Compile the counts into a new snapshot and hand it to the decoders
+     * The snapshot is quantized the way quantize() was last asked to, if it was called since the last compile()
+     * @return the new snapshot
+     */
+    public synchronized TaggerModel publish(){
+        pendingSentences = 0;
+        if (quantizedBits != 0) {
+            return quantize(quantizedBits, quantizedMinWordCount);
+        }
+        return compile();
+    }
+
+    /**
+     * Publish a new snapshot regularly on a background thread, whenever sentences were added since the last one
+     * @param period time between two checks
+     * @param unit unit of period
+     */
+    public synchronized void startPublishing(long period, TimeUnit unit){
+        stopPublishing();
+        publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sudi-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publisher.scheduleAtFixedRate(() -> {
+            synchronized (this) {
+                if (pendingSentences > 0) {
+                    publish();
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stop publishing on a schedule, if it was started
+     */
+    public synchronized void stopPublishing(){
+        if (publisher != null) {
+            publisher.shutdown();
+            publisher = null;
+        }
+    }
+
+    /**
+     * Intern every tag and word to an int id, turn the transition frequencies into a dense matrix of log probabilities
+     * and the observations into one sparse row of log probabilities per word
+     * Must be called again if the graph or the maps are modified
+     * @return the compiled model, also kept in the model field
+     */
+    public synchronized DenseModel compile(){
+        requireCounts("compile");
+        DenseModel compiled = DenseModel.fromGraph(tagProbabilityGraph, sentenceNumPassingThrough, observationsMap, "#");
+        quantizedBits = 0;
+        model = compiled;
+        return compiled;
+    }
+
+    /**
+     * Compile the counts into a quantized model and use it for decoding from now on
+     * Snapshots published later are quantized the same way, until compile() goes back to the full model
+     * @param bits bits per log probability, 16 or 8
+     * @param minWordCount words seen fewer times than this while training are dropped and tagged like unknown words
+     * @return the quantized model, also kept in the model field
+     */
+    public synchronized QuantizedModel quantize(int bits, int minWordCount){
+        requireCounts("quantize");
+        QuantizedModel quantized = quantized(DenseModel.fromGraph(tagProbabilityGraph, sentenceNumPassingThrough,
+                observationsMap, "#"), bits, minWordCount);
+        quantizedBits = bits;
+        quantizedMinWordCount = minWordCount;
+        model = quantized;
+        return quantized;
+    }
+
+    /**
+     * Fail clearly when a method needs the counts, instead of compiling or saving the empty maps of a mapped model
+     * @param method name of the method called
+     */
+    private void requireCounts(String method){
+        if (mapped) {
+            throw new IllegalStateException(method + " needs the training counts, which a model from loadMapped() doesn't have");
+        }
+    }
+
+    /**
+     * @param dense model compiled from the current counts
+     * @param bits bits per log probability, 16 or 8
+     * @param minWordCount words seen fewer times than this while training are dropped
+     * @return the quantized model, without using it for decoding
+     */
+    private QuantizedModel quantized(DenseModel dense, int bits, int minWordCount){
+        return QuantizedModel.fromDense(dense, bits, word -> {
+            int count = 0;
+            for (int seen : observationsMap.get(word).values()) {
+                count += seen;
+            }
+            return count >= minWordCount;
+        });
+    }
+
+    /**
+     * Save the counts of the trained model in a binary file, so it can be loaded without training again
+     * @param path file to write the model to
+     */
+    public synchronized void save(Path path){
+        requireCounts("save");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            // copy the edges of the graph into a map of transition counts
+            Map<String, Map<String, Integer>> transitionCounts = new HashMap<>();
+            for (String from : tagProbabilityGraph.vertices()) {
+                Map<String, Integer> followers = new HashMap<>();
+                for (String to : tagProbabilityGraph.outNeighbors(from)) {
+                    followers.put(to, tagProbabilityGraph.getLabel(from, to));
+                }
+                transitionCounts.put(from, followers);
+            }
+
+            ModelFile.writeHeader(out, ModelFile.BIGRAM);
+            Map<String, Integer> tagIds = ModelFile.writeTags(out, sentenceNumPassingThrough);
+            ModelFile.writeTransitions(out, transitionCounts, tagIds);
+            ModelFile.writeVocabulary(out, observationsMap, tagIds);
+        }
+        catch (IOException e) {
+            System.err.println("Cannot write model file.\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Load a model saved with save(), instead of training it again
+     * @param path file the model was saved to
+     * @return the loaded and compiled model, or null if the file can't be read
+     */
+    public static Sudi load(Path path){
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            Sudi loaded = new Sudi();
+
+            ModelFile.readHeader(in, ModelFile.BIGRAM);
+            String[] tags = ModelFile.readTags(in, loaded.sentenceNumPassingThrough);
+            Map<String, Map<String, Integer>> transitionCounts = ModelFile.readTransitions(in, tags);
+            loaded.observationsMap = ModelFile.readVocabulary(in, tags);
+
+            // rebuild the graph, every tag is a vertex and every transition count an edge
+            for (String tag : tags) {
+                loaded.tagProbabilityGraph.insertVertex(tag);
+            }
+            for (String from : transitionCounts.keySet()) {
+                for (String to : transitionCounts.get(from).keySet()) {
+                    loaded.tagProbabilityGraph.insertDirected(from, to, transitionCounts.get(from).get(to));
+                }
+            }
+
+            loaded.compile();
+            return loaded;
+        }
+        catch (IOException e) {
+            System.err.println("Cannot read model file.\n" + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save the compiled log probabilities as an image that other processes can memory-map with loadMapped()
+     * @param path file to write the image to
+     */
+    public void saveMapped(Path path){
+        // compiled aside, so saving doesn't replace the model decoders use or drop its quantization
+        DenseModel dense;
+        synchronized (this) {
+            requireCounts("saveMapped");
+            dense = DenseModel.fromGraph(tagProbabilityGraph, sentenceNumPassingThrough, observationsMap, "#");
+        }
         try {
-            input1.close();
-            input2.close();
+            MappedModel.write(dense, path);
         }
         catch (IOException e) {
-            System.err.println("Cannot close file.\n" + e.getMessage());
+            System.err.println("Cannot write model file.\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Memory-map an image saved with saveMapped(), decoding straight from the mapped tables
+     * Only the decoding methods can be used. The returned model has no counts, so training, compiling, quantizing,
+     * saving and predictNext are not supported and throw an IllegalStateException
+     * @param path file the image was saved to
+     * @return read-only model, or null if the file can't be mapped
+     */
+    public static Sudi loadMapped(Path path){
+        try {
+            Sudi mapped = new Sudi();
+            mapped.model = MappedModel.open(path);
+            mapped.mapped = true;
+            return mapped;
+        }
+        catch (IOException e) {
+            System.err.println("Cannot read model file.\n" + e.getMessage());
+            return null;
         }
     }
 
@@ -136,15 +447,18 @@ public class Sudi {
      * @return probability that tag2 follows tag1
      */
     public double getTransitionProbability(String tag1, String tag2){
-        // check if part of speech 1 can transition to part of speech 2 according to training files
-        if(tagProbabilityGraph.hasEdge(tag1, tag2)) {
-            // how many times does tag 2 comes after tag 1 compared to how many times tag 1 appears at all
-            return Math.log(((double)(tagProbabilityGraph.getLabel(tag1, tag2))) / ((double) (sentenceNumPassingThrough.get(tag1))));
+        // read the log probabilities precomputed after training
+        TaggerModel snapshot = model;
+        if (snapshot == null) {
+            snapshot = compile();
         }
-        else{
+        int from = snapshot.tagId(tag1);
+        int to = snapshot.tagId(tag2);
+        if (from == -1 || to == -1) {
             // no chance that tag 2 comes after tag 1, according to training files
-            return -100.0;
+            return DenseModel.UNSEEN;
         }
+        return snapshot.transitionScore(from, to);
     }
 
     /**
@@ -153,12 +467,16 @@ public class Sudi {
      * @return probability that a given word in a sentence is of type tag
      */
     public double getObservationProbability(String word, String tag){
-        if(observationsMap.containsKey(word)&&observationsMap.get(word).containsKey(tag)){
-            return Math.log((double)(observationsMap.get(word).get(tag))/(double)(sentenceNumPassingThrough.get(tag)));
+        // read the interned vocabulary instead of the nested maps
+        TaggerModel snapshot = model;
+        if (snapshot == null) {
+            snapshot = compile();
         }
-        else{
-            return -100.0;
+        int tagId = snapshot.tagId(tag);
+        if (tagId == -1) {
+            return DenseModel.UNSEEN;
         }
+        return snapshot.observationScore(word, tagId);
     }
 
 
@@ -189,13 +507,22 @@ public class Sudi {
         }
 
         try {
-            // read every line in a file, corresponding to a sentence
-            String sentence;
-            while ((sentence = input.readLine()) != null) {
-                // calls method that determines tags on a given sentence
-                String decodedTags = ViterbiDecoding(sentence);
-                // write to output file
-                output.write(decodedTags+"\n");
+            if (workers > 1) {
+                // freeze the counts once up front, the workers only read the model
+                if (model == null) {
+                    compile();
+                }
+                BatchTagger.tag(input, output, this::ViterbiDecoding, workers);
+            }
+            else {
+                // read every line in a file, corresponding to a sentence
+                String sentence;
+                while ((sentence = input.readLine()) != null) {
+                    // calls method that determines tags on a given sentence
+                    String decodedTags = ViterbiDecoding(sentence);
+                    // write to output file
+                    output.write(decodedTags+"\n");
+                }
             }
         }
         catch (IOException e) {
@@ -220,110 +547,154 @@ public class Sudi {
     }
 
     /**
-     * @param sentence a string of words to be tagged
-     * @return a string with a tag for each corresponding word in the sentence
+     * Tag sentences read from a stream, one per line, without prompts, for use in shell pipelines
+     * Decodes on workers threads when workers > 1, the output stays in input order
+     * Stops quietly once out can't be written any more, like when the next command of the pipeline has exited
+     * @param in sentences, one per line, in UTF-8
+     * @param out where to write the tags of every sentence, one line per sentence, in UTF-8
+     * @param wordTags whether to write every word with its tag, word/TAG, instead of the tags alone
      */
+    public void tagStream(InputStream in, OutputStream out, boolean wordTags){
+        // freeze the counts once up front, the workers only read the model
+        if (model == null) {
+            compile();
+        }
 
-    public String ViterbiDecoding(String sentence){
-        //List that contains at every index a map with all possible tags the word at that index could have and each tag's probability as the value
-        List<Map<String, Double>> states = new ArrayList<>();
-        //List that contains at every index a map with all possible tags the word at that index+1 could have had and where they came from
-        List<Map<String, String>> backTrack = new ArrayList<>();
-
-        // add first state, start of the sentence #
-        // current state keeps track of the element at the last index of states list, initially # start
-        Map<String, Double> currentState = new HashMap<>();
-        currentState.put("#", 0.0);
-        states.add(currentState);
-
-        sentence = sentence.toLowerCase();
-
-        String[] words = sentence.split(" ");
-        for (String word : words) {
-
-            // for the next word in the sentence, find all possible states with their corresponding probabilities
-            Map<String, Double> nextState = new HashMap<>();
-            // keep track of the current state tags where all tags in this next state came from
-            Map<String, String> stateBackTrack = new HashMap<>();
-
-            // for each of the tags in current determine the tags where they can transition to
-            for (String current : currentState.keySet()) {
-
-                // score in the current state, used to compute next score
-                double currentScore = currentState.get(current);
-
-                // loop through all next tags where the current state can transition to
-                for (String next : tagProbabilityGraph.outNeighbors(current)) {
-
-                    // probability of transitioning from current tag to next tag
-                    double transScore = getTransitionProbability(current, next);
-                    // probability that the word is of type next tag
-                    double observation = getObservationProbability(word, next);
-                    // compute next score upon transition and observation
-                    double nextScore = currentScore + transScore + observation;
-
-                    // only consider next tag if next state had not seen it before or if it's probability,
-                    // coming from a different current tag, is greater than the probability seen before.
-                    if (!nextState.containsKey(next)||nextScore > nextState.get(next)){
-                        // put inside the map at next state with best probability seen so far, or only probability
-                        nextState.put(next, nextScore);
-                        // backtrack: next comes from current
-                        stateBackTrack.put(next, current);
-                    }
+        // remember whether it was writing that failed, rather than reading
+        boolean[] outputClosed = {false};
+        OutputStream watched = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                try {
+                    out.write(bytes, offset, length);
+                }
+                catch (IOException e) {
+                    outputClosed[0] = true;
+                    throw e;
                 }
             }
 
-            // consider the entire state, and the entire state's backtracking
-            states.add(nextState);
-            backTrack.add(stateBackTrack);
-
-            // advance through the words by changing pointer to current
-            currentState = nextState;
-        }
-
-        /*
-         * Back Tracking on entire sentence:
-         *
-         * 1st find out what the best probability is on the last state
-         * Then, loop through all states and find out which path produced the best probability last state
-         */
-        // on last state, we don't know what the tag with the best probability is
-        String bestProbabilityTag = "";
-
-        // loop through last state to find best probability tag
-        for (String tag : currentState.keySet()) {
-            // if first time, instantiate to first tag in last state (try, catch)
-            try {
-                // if we find one that's better, update best probability
-                if (currentState.get(tag) > currentState.get(bestProbabilityTag)) {
-                    bestProbabilityTag = tag;
+            @Override
+            public void flush() throws IOException {
+                try {
+                    out.flush();
+                }
+                catch (IOException e) {
+                    outputClosed[0] = true;
+                    throw e;
                 }
-            } catch (NullPointerException e) {
-                // first time--> start with first possible tag
-                bestProbabilityTag = tag;
+            }
+        };
+
+        try {
+            BatchTagger.pipe(in, watched, this::ViterbiDecoding, wordTags, workers);
+        }
+        catch (IOException e) {
+            // nobody is reading the tags any more, there is nothing left to do or to report
+            if (!outputClosed[0]) {
+                System.err.println("IO error while tagging.\n" + e.getMessage());
             }
         }
+    }
 
-        /*
-         * for observation i, for each state, what was the previous state at observation i-1 that produced the
-         * best score upon transition and observation
-         */
+    /**
+     * Tag a file with the scalar and the Vector API max-plus updates, and compare both
+     * @param fileName to "decode" or tag
+     * @return a string with both times and the discrepancies between the two results
+     */
+    public String maxPlusReport(String fileName){
+        return MaxPlus.report(fileName, this::ViterbiDecoding, this::discrepancies);
+    }
 
-        String decodedTags = ""; // list with tags
+    /**
+     * Tag a file with the compiled model and with a quantized one, and compare their size and accuracy
+     * @param fileName to "decode" or tag
+     * @param answersFile correct tags of the file
+     * @param bits bits per log probability of the quantized model, 16 or 8
+     * @param minWordCount words seen fewer times than this are dropped from the quantized model
+     * @return a string with the size of both models and the discrepancies of both results
+     */
+    public String quantizationReport(String fileName, String answersFile, int bits, int minWordCount){
+        // both models are built aside, the one decoders use is left alone
+        DenseModel dense;
+        QuantizedModel quantized;
+        synchronized (this) {
+            requireCounts("quantizationReport");
+            dense = DenseModel.fromGraph(tagProbabilityGraph, sentenceNumPassingThrough, observationsMap, "#");
+            quantized = quantized(dense, bits, minWordCount);
+        }
+
+        Path denseResult = null;
+        Path quantizedResult = null;
+        try {
+            denseResult = Files.createTempFile("sudi", ".dense");
+            quantizedResult = Files.createTempFile("sudi", ".quantized");
+            tagWith(dense, fileName, denseResult);
+            tagWith(quantized, fileName, quantizedResult);
+
+            long denseBytes = dense.approximateBytes();
+            long quantizedBytes = quantized.approximateBytes();
+            return "Dense model takes about " + denseBytes / 1024 + " KB with " + dense.vocabulary.size() + " words, "
+                    + bits + " bit model with words seen at least " + minWordCount + " times takes about "
+                    + quantizedBytes / 1024 + " KB with " + quantized.vocabulary.size() + " words ("
+                    + (100 - quantizedBytes * 100 / denseBytes) + "% less).\n"
+                    + "Dense: " + discrepancies(answersFile, denseResult.toString()) + "\n"
+                    + "Quantized: " + discrepancies(answersFile, quantizedResult.toString());
+        }
+        catch (IOException e) {
+            return "Cannot compare models.\n" + e.getMessage();
+        }
+        finally {
+            deleteQuietly(denseResult);
+            deleteQuietly(quantizedResult);
+        }
+    }
 
-        // start at best tag found previously, march down to first state
-        String nextTag = bestProbabilityTag;
+    /**
+     * Tag every sentence of a file with a given model, whatever model the decoders use
+     * @param snapshot model to decode with
+     * @param fileName file of sentences, one per line
+     * @param result where to write the tags of every sentence
+     * @throws IOException if either file can't be read or written
+     */
+    private void tagWith(TaggerModel snapshot, String fileName, Path result) throws IOException {
+        try (BufferedReader input = new BufferedReader(new FileReader(fileName));
+             BufferedWriter output = new BufferedWriter(new FileWriter(result.toFile()))) {
+            String sentence;
+            while ((sentence = input.readLine()) != null) {
+                output.write(BigramDecoder.decode(snapshot, sentence, pruneTags));
+                output.write('\n');
+            }
+        }
+    }
 
-        // go through all states, starting from last one
-        for (int i = states.size() - 1; i > 0; i--) {
-            // add to string
-            decodedTags = " " + nextTag + decodedTags;
-            nextTag = backTrack.get(i-1).get(nextTag);
+    /**
+     * @param path file to delete, if any, failures are ignored
+     */
+    private static void deleteQuietly(Path path){
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            // a temporary file left behind
         }
+    }
 
-        decodedTags = decodedTags.substring(1);
+    /**
+     * @param sentence a string of words to be tagged
+     * @return a string with a tag for each corresponding word in the sentence
+     */
 
-        return decodedTags;
+    public String ViterbiDecoding(String sentence){
+        // make sure the counts have been frozen into matrices, and decode the whole sentence with the same snapshot
+        TaggerModel snapshot = model;
+        if (snapshot == null) {
+            snapshot = compile();
+        }
+        return BigramDecoder.decode(snapshot, sentence, pruneTags, prefixCache);
     }
 
     /**
@@ -333,134 +704,51 @@ public class Sudi {
      * @return              // the top 30 best words to complete the sentence
      */
     public ArrayList<Map<String, String>> predictNext(String sentence) {
+        // the words of every tag come from the counts
+        requireCounts("predictNext");
+
         // An array list, the list will be ordered depending on the word we are currently in
         // Inside the entry, will be a map for the word, with a Key being the potential Part of Speech and the Value being their currScore
 
-        // add the start node to the array
-        Map<String, Double> currentState = new HashMap<>();
-        currentState.put("#", 0.0);
-
-
         // Change the entire sentence to lower case letters
         sentence = sentence.toLowerCase();
         String[] words = sentence.split(" ");
 
-        // follow a similar process of the viterbi encoding
-        // for every word in the sentence
-        for (String word : words) {
-
-            // keep track of the next states and their current scores
-            Map<String, Double> nextState = new HashMap<>();
-
-            // for every current state we have in the key set
-            for (String current : currentState.keySet()) {
-
-                // get their current score
-                double currentScore = currentState.get(current);
-
-                // loop through with every part of speech we have studied
-                for (String next : tagProbabilityGraph.outNeighbors(current)) {
-
-                    // calculate it's current score
-                    double transScore = getTransitionProbability(current, next);
-
-                    // it's observational probability should be really low
-                    double observation = getObservationProbability(word, next);
-                    double nextScore = currentScore + transScore + observation;
-
-                    // if the we have seen this tag but with a different tag before it
-                    if (nextState.containsKey(next)) {
-                        if (nextScore > nextState.get(next)) {
-                            // this word is better coming from this other current tag, update this score
-                            nextState.put(next, nextScore);
-                        }
-                    }
-                    // if we haven't see this tag before
-                    else {
-                        // just added with the currently calculated score
-                        nextState.put(next, nextScore);
-                    }
-                }
-            }
-
-            // these next states will become the current states so that we can calculate the next words next states
-            currentState = nextState;
+        // follow the viterbi encoding up to the end of the sentence, resuming from the cached prefix if there is one
+        TaggerModel snapshot = model;
+        if (snapshot == null) {
+            snapshot = compile();
         }
-
-        // now that we have arrived at the end of the sentence, calculate the next more probable word
-
-        // keep a map of the best words we can predict and their scores
-        Map<String, Double> predictedWords = new HashMap<>();
-        // keep a map with the tags used for this predicted words
-        Map<String, String> predictedWordsTag = new HashMap<>();
-
-        // loop through last state to find best prediction word
-        for (String current : currentState.keySet()) {
-
-            // get the current score
-            double currentScore = currentState.get(current);
+        // with the same pruning as ViterbiDecoding, so both share the cached columns
+        double[] currentState = BigramDecoder.forward(snapshot, sentence, pruneTags, prefixCache).scores;
+
+        // now that we have arrived at the end of the sentence, find the best score of reaching every tag next
+        double[] tagScores = new double[snapshot.numTags()];
+        Arrays.fill(tagScores, Double.NEGATIVE_INFINITY);
+        for (int current = 0; current < currentState.length; current++) {
+
+            // get the current score, skipping the tags that can't be reached
+            double currentScore = currentState[current];
+            if (currentScore == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
 
             // for every possible next tag we could have
-            for (String next : tagProbabilityGraph.outNeighbors(current)) {
-
-                // for every word we have seen so far
-                for (String predictedWord : observationsMap.keySet()) {
-
-                    // if this word has been found withe the tag we are analysing
-
-                    if (observationsMap.get(predictedWord).containsKey(next)) {
-
-                        // calculate it's current score
-                        double transScore = getTransitionProbability(current, next);
-
-                        // it's observational probability should be really low
-                        double observation = getObservationProbability(predictedWord, next);
-                        double nextScore = currentScore + transScore + observation;
-
-                        // if we have already seen this word before
-                        if (predictedWords.containsKey(predictedWord)) {
-                            // if the tag we are using for the word, calculates a bigger score, replace it in the maps
-                            if (predictedWords.get(predictedWord) < nextScore) {
-                                predictedWords.put(predictedWord, nextScore);
-                                predictedWordsTag.put(predictedWord, next);
-                            }
-                        }
-                        // if we haven't seen the word before
-                        else {
-                            // just place it in the map
-                            predictedWords.put(predictedWord, nextScore);
-                            predictedWordsTag.put(predictedWord, next);
-                        }
-                    }
-                }
+            for (int next = 0; next < tagScores.length; next++) {
+                tagScores[next] = Math.max(tagScores[next], currentScore + snapshot.transition(current, next));
             }
         }
 
-        // create a priority queue to see which predicted words give out the best scores
-        PriorityQueue<String> pq = new PriorityQueue<>(new Comparator<String>() {
-            @Override
-            // add them to the pq depending on their scores (decreasing order (largest at index 0)
-            public int compare(String o1, String o2) {
-                if (predictedWords.get(o1) < predictedWords.get(o2)) {return 1;}
-                else if (predictedWords.get(o1) > predictedWords.get(o2)) {return -1; }
-                else { return 0;}
-            }
-        });
-
-        // add all of the predicted words into the priority queue
-        for (String predictions: predictedWords.keySet()) {
-            pq.add(predictions);
-        }
+        // the best words over all next tags, read from the words of every tag sorted by observation score
+        // 31 like the original loop, which ran from 0 up to and including 30, so the predictions stay the same
+        Map<String, String> predictedWordsTag = new HashMap<>();
+        List<String> predictedWords = wordIndex(snapshot).topWords(tagScores, 31, predictedWordsTag);
 
         // make a array list that holds a map of the top 30 words and their tags
         ArrayList<Map<String, String>> result = new ArrayList<>();
-
-        // if priority queue is smaller than 30 words, only add those
-        int maxNumber = Math.min(30, pq.size());
-
-        for (int i = 0; i <= maxNumber; i++) {
+        for (int i = 0; i < predictedWords.size(); i++) {
             result.add(i, new HashMap<>());
-            String word = pq.remove();
+            String word = predictedWords.get(i);
             if (!word.equals(words[words.length-1])) {
                 result.get(i).put(word, predictedWordsTag.get(word));
             }
@@ -479,112 +767,174 @@ public class Sudi {
         System.out.println("For example, 'Hello , hope you have a nice day !'");
 
 
-        // allow user input
-        Scanner scan = new Scanner(System.in);
-        System.out.println("\nEnter your sentence: ");
-        String s = scan.nextLine();
+        // sentences are often typed again with a word more, so keep the forward columns of the last ones
+        // only while the console is open, tagging files doesn't reuse prefixes
+        PrefixCache previousCache = prefixCache;
+        if (prefixCache == null) {
+            prefixCache = new PrefixCache();
+        }
 
-        // while the user does not want to quit
-        while (!s.equals("q")) {
+        try {
+            // allow user input
+            Scanner scan = new Scanner(System.in);
+            System.out.println("\nEnter your sentence: ");
 
-            // split the tags and words into a String Array
-            String[] tags = ViterbiDecoding(s).split(" ");
-            String[] words = s.split(" ");
+            // while the user does not want to quit, or until the input ends
+            String s;
+            while (scan.hasNextLine() && !(s = scan.nextLine()).equals("q")) {
 
-            // create a resulting string
-            String result = "";
+                // split the tags and words into a String Array
+                String[] tags = ViterbiDecoding(s).split(" ");
+                String[] words = s.split(" ");
 
-            // for every word and tag
-            for (int i = 0; i < words.length; i ++) {
-                // add it to the result string
-                result += words[i] + "/" + tags[i] + " ";
-            }
+                // create a resulting string
+                StringBuilder result = new StringBuilder();
+
+                // for every word and tag
+                for (int i = 0; i < words.length; i ++) {
+                    // add it to the result string
+                    result.append(words[i]).append("/").append(tags[i]).append(" ");
+                }
 
-            System.out.println(result);
+                System.out.println(result);
 
-            // ask for more user input
-            scan = new Scanner(System.in);
-            System.out.println("\nEnter your sentence: ");
-            s = scan.nextLine();
+                // ask for more user input
+                System.out.println("\nEnter your sentence: ");
+            }
+        }
+        finally {
+            prefixCache = previousCache;
         }
 
         // if the user quit the game
         System.out.println("Good Bye!");
     }
 
+    /**
+     * @param snapshot model predictNext is reading
+     * @return the words of every tag sorted by their observation score in the snapshot
+     */
+    private synchronized TagWordIndex wordIndex(TaggerModel snapshot){
+        if (wordIndex == null || wordIndex.model != snapshot) {
+            wordIndex = new TagWordIndex(snapshot, observationsMap);
+        }
+        return wordIndex;
+    }
+
     /**
      * @param fileName1 tags file 1
      * @param fileName2 tags file 2
      * @return a string describing the number of different tags in both files and the total number of words
      */
     public String discrepancies(String fileName1, String fileName2){
-        BufferedReader input1;
-        BufferedReader input2;
-
         String result = "";
         int numOfDiscrepancies = 0;
         int totalNumber = 0;
 
-        // Open the file, if possible
-        try {
-            input1 = new BufferedReader(new FileReader(fileName1));
-            input2 = new BufferedReader(new FileReader(fileName2));
-        }
-        catch (FileNotFoundException e) {
-            System.err.println("Cannot open file.\n" + e.getMessage());
-            return result;
-        }
-        // read files if possible
-        try {
+        // open both files and read them, both are closed whatever happens
+        try (CorpusReader input1 = CorpusReader.open(fileName1);
+             CorpusReader input2 = CorpusReader.open(fileName2)) {
 
             // read every line in both file
-            String sentenceTags1;
-            String sentenceTags2;
-            while (((sentenceTags1 = input1.readLine()) != null)&&((sentenceTags2 = input2.readLine()) != null)) {
+            while (input1.nextLine() && input2.nextLine()) {
 
-                // get the tags in every file
-                String[] firstTags =  sentenceTags1.split(" ");
-                String[] secondTags =  sentenceTags2.split(" ");
+                // get the tags in every file, compared in place without making Strings
+                int numFirstTags = input1.split();
+                int numSecondTags = input2.split();
 
                 // loop through tags and if you find one that doesn't match, increase the discrepancies count
                 int index = 0;
-                while(index<Math.min(firstTags.length, secondTags.length)){
+                while(index<Math.min(numFirstTags, numSecondTags)){
                     totalNumber += 1;
-                    if(!(firstTags[index].equals(secondTags[index]))){
+                    if(!input1.sameToken(index, input2, index)){
                         numOfDiscrepancies += 1;
                     }
                     index++;
                 }
 
                 // make sure they both have the same number of tags
-                if(firstTags.length<secondTags.length){
-                    numOfDiscrepancies += secondTags.length-firstTags.length;
+                if(numFirstTags<numSecondTags){
+                    numOfDiscrepancies += numSecondTags-numFirstTags;
                 }
-                if(firstTags.length>secondTags.length){
-                    numOfDiscrepancies += firstTags.length-secondTags.length;
+                if(numFirstTags>numSecondTags){
+                    numOfDiscrepancies += numFirstTags-numSecondTags;
                 }
 
             }
-
         }
         catch (IOException e) {
             System.err.println("IO error while reading.\n" + e.getMessage());
+            return result;
         }
 
-        // Close both files, if possible
-        try {
-            input1.close();
-            input2.close();
+        result = "Found "+numOfDiscrepancies+" discrepancies out of "+totalNumber+" total words.";
+        return result;
+    }
+
+    /**
+     * Streaming mode of main, reads sentences from stdin and writes their tags to stdout
+     * java Sudi --pipe [--words] [--prune] [--workers N] [--model file] < sentences > tags
+     * @param args command line arguments, after --pipe
+     */
+    private static void pipe(String[] args){
+        boolean wordTags = false;
+        boolean prune = false;
+        int workers = 1;
+        String modelFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--words")) {
+                wordTags = true;
+            }
+            else if (args[i].equals("--prune")) {
+                prune = true;
+            }
+            else if (args[i].equals("--workers") && i + 1 < args.length) {
+                try {
+                    workers = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    System.err.println(PIPE_USAGE);
+                    return;
+                }
+            }
+            else if (args[i].equals("--model") && i + 1 < args.length) {
+                modelFile = args[++i];
+            }
+            else {
+                System.err.println(PIPE_USAGE);
+                return;
+            }
         }
-        catch (IOException e) {
-            System.err.println("Cannot close file.\n" + e.getMessage());
+
+        // a saved model if there is one, otherwise train on brown
+        Sudi tagger;
+        if (modelFile != null) {
+            tagger = load(Paths.get(modelFile));
+            if (tagger == null) {
+                return;
+            }
+        }
+        else {
+            tagger = new Sudi();
+            tagger.trainMachine("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
         }
+        tagger.pruneTags = prune;
+        tagger.workers = workers;
 
-        result = "Found "+numOfDiscrepancies+" discrepancies out of "+totalNumber+" total words.";
-        return result;
+        // straight to the file descriptors, System.out would flush and lock on every line
+        tagger.tagStream(new FileInputStream(FileDescriptor.in), new FileOutputStream(FileDescriptor.out), wordTags);
     }
 
     public static void main(String[] args) {
+        // non-interactive streaming mode, for shell pipelines
+        if (args.length > 0 && args[0].equals("--pipe")) {
+            pipe(args);
+            return;
+        }
+
         // used for debugging purposes
         if (debugFlag) {
             // training the machine with simple-train
@@ -658,5 +1008,48 @@ public class Sudi {
             System.out.println(brownTrainTest.discrepancies(answersFile, result));
             brownTrainTest.inputConsole();
         }
+
+        if (maxPlusBenchmark) {
+            // compare the scalar and Vector API max-plus updates on brown, for Sudi and SudiEC
+            String brownTrainTags = "PS5/brown-train-tags.txt";
+            String brownTrainSentences = "PS5/brown-train-sentences.txt";
+            String input = "PS5/brown-test-sentences.txt";
+
+            Sudi bigram = new Sudi();
+            bigram.trainMachine(brownTrainSentences, brownTrainTags);
+            System.out.println(bigram.maxPlusReport(input));
+
+            SudiEC trigram = new SudiEC();
+            trigram.trainMachine(brownTrainSentences, brownTrainTags);
+            System.out.println(trigram.maxPlusReport(input));
+        }
+
+        if (quantizationBenchmark) {
+            // size and accuracy of quantized models on brown, against the compiled model
+            String brownTrainTags = "PS5/brown-train-tags.txt";
+            String brownTrainSentences = "PS5/brown-train-sentences.txt";
+            String input = "PS5/brown-test-sentences.txt";
+            String answersFile = "PS5/brown-test-tags.txt";
+
+            Sudi brownTrainTest = new Sudi();
+            brownTrainTest.trainMachine(brownTrainSentences, brownTrainTags);
+            System.out.println(brownTrainTest.quantizationReport(input, answersFile, 16, 1));
+            System.out.println(brownTrainTest.quantizationReport(input, answersFile, 8, 1));
+            System.out.println(brownTrainTest.quantizationReport(input, answersFile, 8, 2));
+        }
+
+        if (beamBenchmark) {
+            // speed and accuracy of SudiEC with a beam on brown, against exact Viterbi
+            String brownTrainTags = "PS5/brown-train-tags.txt";
+            String brownTrainSentences = "PS5/brown-train-sentences.txt";
+            String input = "PS5/brown-test-sentences.txt";
+            String answersFile = "PS5/brown-test-tags.txt";
+
+            SudiEC trigram = new SudiEC();
+            trigram.trainMachine(brownTrainSentences, brownTrainTags);
+            for (int beamWidth : new int[]{5, 20, 100}) {
+                System.out.println(trigram.beamReport(input, answersFile, beamWidth));
+            }
+        }
     }
 }
\ No newline at end of file
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 
 /**
@@ -27,6 +28,21 @@ public class SudiEC {
 
     public Map<String, Integer> tagFrequency;
 
+    // bigram and observation log probabilities precomputed from the counts above, rebuilt by compile() after training
+    public DenseModel model;
+
+    // when true, decoding only expands the tags a known word was seen with, or the open class tags for unknown words
+    public boolean pruneTags = false;
+
+    // number of threads trainMachine counts with and determineTags decodes with, 1 does everything on the calling thread
+    public int workers = 1;
+
+    // log probability of every (previous, current, next) with the bigram backoff resolved, rebuilt by compile() after training
+    public TrigramTable trigrams;
+
+    // words of every tag sorted by observation score, for predictNext, rebuilt when the model changes
+    private TagWordIndex wordIndex;
+
     /**
      *  Constructor no parameters
      */
@@ -53,18 +69,10 @@ public class SudiEC {
      * @param tagFileName File with parts of speech for corresponding words
      */
     public void trainMachine(String originalFileName, String tagFileName){
-        BufferedReader input1;
-        BufferedReader input2;
+        // the counts are about to change, so the compiled log probabilities are no longer valid
+        model = null;
+        trigrams = null;
 
-        // Open both files, if possible
-        try {
-            input1 = new BufferedReader(new FileReader(originalFileName));
-            input2 = new BufferedReader(new FileReader(tagFileName));
-        }
-        catch (FileNotFoundException e) {
-            System.err.println("Cannot open file.\n" + e.getMessage());
-            return;
-        }
         // try reading both files
         try {
             tagFrequency.put("#", 0);
@@ -76,77 +84,87 @@ public class SudiEC {
 
             pairsFrequency.put("#", new HashMap<>());
 
-            String words;       // words read from original file
-            String states;      // tags read from parts of speech file
-            while ((words = input1.readLine())!= null&&(states = input2.readLine())!= null) {
-                String[] partsOfSpeech = states.split(" ");
-                String[] correspondingWords = words.split(" ");
-
-                // for every sentence start with the start of sentence indicator (#)
-                String previous = "@";
-                String current = "#";
-                pairsFrequency.get(previous).put(current, pairsFrequency.get(previous).get(current) + 1);
-                tagFrequency.put(previous, tagFrequency.get(previous)+1);
-                tagFrequency.put(current, tagFrequency.get(current)+1);
-
-                // loop through words and corresponding parts of speech in a sentence
-                int i = 0;
-                while (i < partsOfSpeech.length) {
-                    // get a word and its corresponding tag
-                    String next = partsOfSpeech[i];
-                    String word = correspondingWords[i].toLowerCase();
-
-                    if(!tagFrequency.containsKey(next)){
-                        tagFrequency.put(next, 0);
-                    }
-                    tagFrequency.put(next, tagFrequency.get(next)+1);
+            if (workers > 1) {
+                // count ranges of lines on separate threads, then merge them in order, which gives the same counts
+                List<ShardedTrainer.Shard> shards = ShardedTrainer.count(originalFileName, tagFileName, workers, true);
+                ShardedTrainer.mergeInto(shards, pairToNextMap, pairsFrequency, observationsMap, tagFrequency);
+            }
+            else {
+                // only the single threaded count reads the files here, every line is split in place
+                // and tokens are interned straight from the mapped files
+                try (CorpusReader input1 = CorpusReader.open(originalFileName);
+                     CorpusReader input2 = CorpusReader.open(tagFileName)) {
+                    while (input1.nextLine() && input2.nextLine()) {
+                        int numTags = input2.split();
+                        input1.split();
+
+                        // for every sentence start with the start of sentence indicator (#)
+                        String previous = "@";
+                        String current = "#";
+                        pairsFrequency.get(previous).put(current, pairsFrequency.get(previous).get(current) + 1);
+                        tagFrequency.put(previous, tagFrequency.get(previous)+1);
+                        tagFrequency.put(current, tagFrequency.get(current)+1);
+
+                        // loop through words and corresponding parts of speech in a sentence
+                        int i = 0;
+                        while (i < numTags) {
+                            // get a word and its corresponding tag
+                            String next = input2.token(i, false);
+                            String word = input1.token(i, true);
+
+                            if(!tagFrequency.containsKey(next)){
+                                tagFrequency.put(next, 0);
+                            }
+                            tagFrequency.put(next, tagFrequency.get(next)+1);
 
 
-                    if (!pairsFrequency.containsKey(next)) {
-                        pairsFrequency.put(next, new HashMap<>());
-                    }
+                            if (!pairsFrequency.containsKey(next)) {
+                                pairsFrequency.put(next, new HashMap<>());
+                            }
 
 
-                    if (!pairsFrequency.get(current).containsKey(next)) {
-                        pairsFrequency.get(current).put(next, 0);
-                    }
+                            if (!pairsFrequency.get(current).containsKey(next)) {
+                                pairsFrequency.get(current).put(next, 0);
+                            }
 
-                    pairsFrequency.get(current).put(next, pairsFrequency.get(current).get(next) + 1);
+                            pairsFrequency.get(current).put(next, pairsFrequency.get(current).get(next) + 1);
 
 
-                    if (!pairToNextMap.containsKey(next)) {
-                        pairToNextMap.put(next, new HashMap<>());
-                    }
+                            if (!pairToNextMap.containsKey(next)) {
+                                pairToNextMap.put(next, new HashMap<>());
+                            }
 
 
-                    // if there wasn't a connection between current tag and next tag, add a connection with frequency 1
-                    if (!pairToNextMap.containsKey(previous)) {
-                        pairToNextMap.put(previous, new HashMap<>());
-                    }
-                    if (!pairToNextMap.get(previous).containsKey(current)) {
-                        pairToNextMap.get(previous).put(current, new HashMap<>());
-                    }
-                    if (!pairToNextMap.get(previous).get(current).containsKey(next)) {
-                        pairToNextMap.get(previous).get(current).put(next, 0);
-                    }
+                            // if there wasn't a connection between current tag and next tag, add a connection with frequency 1
+                            if (!pairToNextMap.containsKey(previous)) {
+                                pairToNextMap.put(previous, new HashMap<>());
+                            }
+                            if (!pairToNextMap.get(previous).containsKey(current)) {
+                                pairToNextMap.get(previous).put(current, new HashMap<>());
+                            }
+                            if (!pairToNextMap.get(previous).get(current).containsKey(next)) {
+                                pairToNextMap.get(previous).get(current).put(next, 0);
+                            }
 
-                    pairToNextMap.get(previous).get(current).put(next, pairToNextMap.get(previous).get(current).get(next) + 1);
+                            pairToNextMap.get(previous).get(current).put(next, pairToNextMap.get(previous).get(current).get(next) + 1);
 
-                    // if the word hadn't already been seen, add it to observations
-                    if (!observationsMap.containsKey(word)) {
-                        observationsMap.put(word, new HashMap<>());
-                    }
-                    // if the word hadn't already been seen with this tag, add the taag to it's map of possible tags
-                    if (!observationsMap.get(word).containsKey(next)) {
-                        observationsMap.get(word).put(next, 0);
-                    }
-                    // increment the frequency by which the word has been seen with this tag by 1
-                    observationsMap.get(word).put(next, observationsMap.get(word).get(next) + 1);
+                            // if the word hadn't already been seen, add it to observations
+                            if (!observationsMap.containsKey(word)) {
+                                observationsMap.put(word, new HashMap<>());
+                            }
+                            // if the word hadn't already been seen with this tag, add the taag to it's map of possible tags
+                            if (!observationsMap.get(word).containsKey(next)) {
+                                observationsMap.get(word).put(next, 0);
+                            }
+                            // increment the frequency by which the word has been seen with this tag by 1
+                            observationsMap.get(word).put(next, observationsMap.get(word).get(next) + 1);
 
-                    // advance through other words in the sentence
-                    previous = current;
-                    current = next;
-                    i++;
+                            // advance through other words in the sentence
+                            previous = current;
+                            current = next;
+                            i++;
+                        }
+                    }
                 }
             }
         }
@@ -154,35 +172,86 @@ public class SudiEC {
             System.err.println("IO error while reading.\n" + e.getMessage());
         }
 
-        // Close both files, if possible
-        try {
-            input1.close();
-            input2.close();
+        // precompute every log probability once, counts don't change after training
+        compile();
+    }
+
+    /**
+     * Precompute the log probabilities of every trigram, bigram and observation seen while training
+     * Must be called again if any of the maps are modified
+     * @return the compiled bigram and observation model, also kept in the model field
+     */
+    public DenseModel compile(){
+        model = DenseModel.fromCounts(pairsFrequency, tagFrequency, observationsMap, "#");
+
+        // resolve the trigram or bigram score of every (previous, current, next) once
+        trigrams = TrigramTable.build(model, pairToNextMap, pairsFrequency);
+        return model;
+    }
+
+    /**
+     * Save the counts of the trained model in a binary file, so it can be loaded without training again
+     * @param path file to write the model to
+     */
+    public void save(Path path){
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            ModelFile.writeHeader(out, ModelFile.TRIGRAM);
+            Map<String, Integer> tagIds = ModelFile.writeTags(out, tagFrequency);
+            ModelFile.writeTransitions(out, pairsFrequency, tagIds);
+            ModelFile.writeTrigrams(out, pairToNextMap, tagIds);
+            ModelFile.writeVocabulary(out, observationsMap, tagIds);
         }
         catch (IOException e) {
-            System.err.println("Cannot close file.\n" + e.getMessage());
+            System.err.println("Cannot write model file.\n" + e.getMessage());
         }
     }
 
+    /**
+     * Load a model saved with save(), instead of training it again
+     * @param path file the model was saved to
+     * @return the loaded and compiled model, or null if the file can't be read
+     */
+    public static SudiEC load(Path path){
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            SudiEC loaded = new SudiEC();
 
-    public double getTransitionScore(String previous, String current, String next){
-        // check if part of speech 1 can transition to part of speech 2 according to training files
-
-        if(pairToNextMap.get(previous).containsKey(current)&&pairToNextMap.get(previous).get(current).containsKey(next)) {
-            // how many times does tag 2 comes after tag 1 compared to how many times tag 1 appears at all
+            ModelFile.readHeader(in, ModelFile.TRIGRAM);
+            String[] tags = ModelFile.readTags(in, loaded.tagFrequency);
+            loaded.pairsFrequency = ModelFile.readTransitions(in, tags);
+            loaded.pairToNextMap = ModelFile.readTrigrams(in, tags);
+            loaded.observationsMap = ModelFile.readVocabulary(in, tags);
 
-            double totalPreviousTagsSeen = pairsFrequency.get(previous).get(current);
-            double transitionProbability = ((double)pairToNextMap.get(previous).get(current).get(next))/(totalPreviousTagsSeen);
-            return Math.log(transitionProbability);
+            loaded.compile();
+            return loaded;
+        }
+        catch (IOException e) {
+            System.err.println("Cannot read model file.\n" + e.getMessage());
+            return null;
         }
-        else if(pairsFrequency.get(current).containsKey(next)){// check if part of speech 1 can transition to part of speech 2 according to training files
+    }
 
-            return Math.log(((double)(pairsFrequency.get(current).get(next))) / ((double) (tagFrequency.get(current))));
+    /**
+     * What is the probability that next follows previous and current? Backs off to the bigram if the trigram was never seen
+     * @param previous tag two positions before next
+     * @param current tag right before next
+     * @param next tag going to
+     * @return log probability that next follows previous and current
+     */
+    public double getTransitionScore(String previous, String current, String next){
+        // read the log probabilities precomputed after training
+        if (model == null) {
+            compile();
         }
-        else{
-            // no chance that tag 2 comes after tag 1, according to training files
-            return -100.0;
+
+        // the backoff to the bigram was already resolved when the table was built
+        int previousId = model.tagId(previous);
+        int currentId = model.tagId(current);
+        int nextId = model.tagId(next);
+        if (previousId == -1 || currentId == -1 || nextId == -1) {
+            // no chance that next comes after current, according to training files
+            return DenseModel.UNSEEN;
         }
+        return trigrams.transitionScore(previousId, currentId, nextId);
     }
 
 
@@ -192,13 +261,15 @@ public class SudiEC {
      * @return probability that a given word in a sentence is of type tag
      */
     public double getObservationProbability(String word, String tag){
-        if(observationsMap.containsKey(word)&&observationsMap.get(word).containsKey(tag)){
-            double timesTagWasSeen = tagFrequency.get(tag);
-            return Math.log((double)(observationsMap.get(word).get(tag))/(timesTagWasSeen));
+        // read the log probabilities precomputed after training
+        if (model == null) {
+            compile();
         }
-        else{
-            return -100.0;
+        int tagId = model.tagId(tag);
+        if (tagId == -1) {
+            return DenseModel.UNSEEN;
         }
+        return model.observationScore(word, tagId);
     }
 
     /**
@@ -207,6 +278,16 @@ public class SudiEC {
      * @param resultFileName path to send resulting tags
      */
     public void determineTags(String fileName, String resultFileName){
+        determineTags(fileName, resultFileName, TrigramDecoder.EXACT);
+    }
+
+    /**
+     * Same as determineTags, but decoding with a beam
+     * @param fileName to "decode" or tag
+     * @param resultFileName path to send resulting tags
+     * @param beamWidth number of states kept per word, or TrigramDecoder.EXACT for exact Viterbi
+     */
+    public void determineTags(String fileName, String resultFileName, int beamWidth){
         BufferedReader input;
         BufferedWriter output;
 
@@ -228,13 +309,22 @@ public class SudiEC {
         }
 
         try {
-            // read every line in a file, corresponding to a sentence
-            String sentence;
-            while ((sentence = input.readLine()) != null) {
-                // calls method that determines tags on a given sentence
-                String decodedTags = ViterbiDecoding(sentence);
-                // write to output file
-                output.write(decodedTags+"\n");
+            if (workers > 1) {
+                // freeze the counts once up front, the workers only read the model
+                if (model == null) {
+                    compile();
+                }
+                BatchTagger.tag(input, output, sentence -> ViterbiDecoding(sentence, beamWidth), workers);
+            }
+            else {
+                // read every line in a file, corresponding to a sentence
+                String sentence;
+                while ((sentence = input.readLine()) != null) {
+                    // calls method that determines tags on a given sentence
+                    String decodedTags = ViterbiDecoding(sentence, beamWidth);
+                    // write to output file
+                    output.write(decodedTags+"\n");
+                }
             }
         }
         catch (IOException e) {
@@ -264,156 +354,77 @@ public class SudiEC {
      */
 
     public String ViterbiDecoding(String sentence) {
-//List that contains at every index a map with all possible tags the word at that index could have and each tag's probability as the value
-        List<Map<String, Map<String, String>>> backTrace = new ArrayList<>();
-
-        // add first state, start of the sentence #
-        // current state keeps track of the element at the last index of states list, initially # start
-        Map<String, Map<String, Double>> currentState = new HashMap<>();
-        currentState.put("#", new HashMap<>());
-        currentState.get("#").put("@", 0.0);
-
-        Map<String, Map<String, String>> currentTrace = new HashMap<>();
-        currentTrace.put("#", new HashMap<>());
-        currentTrace.get("#").put("@", "@");
-        backTrace.add(currentTrace);
-
-        sentence = sentence.toLowerCase();
-        String[] words = sentence.split(" ");
-
-        for (String word : words) {
-
-            // for the next word in the sentence, find all possible states with their corresponding probabilities
-            Map<String, Map<String, Double>> nextState = new HashMap<>();
-            Map<String, Map<String, String>> nextTrace = new HashMap<>();
-
-            // for each of the tags in current determine the tags where they can transition to
-            for (String current : currentState.keySet()) {
-
-                for(String previous : currentTrace.get(current).keySet()) {
-
-                    // score in the current state, used to compute next score
-                    double currentScore = currentState.get(current).get(previous);
-
-
-                    if (pairToNextMap.get(previous).containsKey(current)) {
-                        // loop through all next tags where the current state can transition to
-
-                        for (String next : pairsFrequency.get(current).keySet()) {
-
-                            double transScore = getTransitionScore(previous, current, next);
-                            // probability that the word is of type next tag
-                            double observation = getObservationProbability(word, next);
-                            // compute next score upon transition and observation
-                            double nextScore = currentScore+transScore+observation;
+        return ViterbiDecoding(sentence, TrigramDecoder.EXACT);
+    }
 
-                            // only consider next tag if next state had not seen it before or if it's probability,
-                            // coming from a different current tag, is greater than the probability seen before.
-                            if (!nextState.containsKey(next)) {
-                                // put inside the map at next state with best probability seen so far, or only probability
-                                nextState.put(next, new HashMap<>());
-                                nextState.get(next).put(current, nextScore);
-                                // backtrack: next comes from current
-                                nextTrace.put(next, new HashMap<>());
-                                nextTrace.get(next).put(current, previous);
-                            }
-                            else if(!nextState.get(next).containsKey(current)||nextScore > nextState.get(next).get(current)){
-                                nextState.get(next).put(current, nextScore);
+    /**
+     * @param sentence a string of words to be tagged
+     * @param beamWidth number of (current, previous) states kept per word, or TrigramDecoder.EXACT for exact Viterbi
+     * @return a string with a tag for each corresponding word in the sentence
+     */
+    public String ViterbiDecoding(String sentence, int beamWidth) {
+        // make sure the counts have been frozen into int-indexed tables
+        if (model == null) {
+            compile();
+        }
+        return TrigramDecoder.decode(model, trigrams, sentence, pruneTags, beamWidth);
+    }
 
-                                nextTrace.get(next).put(current, previous);
-                            }
-                        }
-                    } else if (pairsFrequency.containsKey(current)) {
-
-                        for (String next : pairsFrequency.get(current).keySet()) {
-                            // probability of transitioning from current tag to next tag
-                            double transScore = getTransitionScore(previous, current, next);
-                            // probability that the word is of type next tag
-                            double observation = getObservationProbability(word, next);
-                            // compute next score upon transition and observation
-                            double nextScore = currentScore + transScore + observation;
-
-                            // only consider next tag if next state had not seen it before or if it's probability,
-                            // coming from a different current tag, is greater than the probability seen before.
-                            if (!nextState.containsKey(next)) {
-                                // put inside the map at next state with best probability seen so far, or only probability
-                                nextState.put(next, new HashMap<>());
-                                nextState.get(next).put(current, nextScore);
-                                // backtrack: next comes from current
-                                nextTrace.put(next, new HashMap<>());
-                                nextTrace.get(next).put(current, previous);
-                            }
-                            else if(!nextState.get(next).containsKey(current)||nextScore > nextState.get(next).get(current)){
-                                nextState.get(next).put(current, nextScore);
+    /**
+     * Tag a file with exact Viterbi and with a beam, and compare both
+     * The results are written to temporary files, deleted once compared
+     * @param fileName to "decode" or tag
+     * @param answersFile correct tags of the file
+     * @param beamWidth number of states kept per word in beam mode
+     * @return a string with the discrepancies of the beam against exact Viterbi and against the answers, and both times
+     */
+    public String beamReport(String fileName, String answersFile, int beamWidth){
+        Path exactFile = null;
+        Path beamFile = null;
+        try {
+            exactFile = Files.createTempFile("sudiec", ".exact");
+            beamFile = Files.createTempFile("sudiec", ".beam" + beamWidth);
+            String exactResult = exactFile.toString();
+            String beamResult = beamFile.toString();
 
-                                nextTrace.get(next).put(current, previous);
-                            }
-                        }
-                    }
-                }
-            }
+            long start = System.nanoTime();
+            determineTags(fileName, exactResult);
+            long exactTime = System.nanoTime() - start;
 
-            backTrace.add(nextTrace);
+            start = System.nanoTime();
+            determineTags(fileName, beamResult, beamWidth);
+            long beamTime = System.nanoTime() - start;
 
-            // advance through the words by changing pointer to current
-            currentState = nextState;
-            currentTrace = nextTrace;
+            return "Beam " + beamWidth + " took " + beamTime / 1000000 + " ms, exact took " + exactTime / 1000000 + " ms.\n"
+                    + "Beam against exact: " + discrepancies(exactResult, beamResult) + "\n"
+                    + "Beam against answers: " + discrepancies(answersFile, beamResult) + "\n"
+                    + "Exact against answers: " + discrepancies(answersFile, exactResult);
         }
-
-        /*
-         * Back Tracking on entire sentence:
-         *
-         * 1st find out what the best probability is on the last state
-         * Then, loop through all states and find out which path produced the best probability last state
-         */
-        // on last state, we don't know what the tag with the best probability is
-        String bestNextTag = "";
-        String bestCurrentTag = "";
-
-
-        // loop through last state to find best probability tag
-        for (String next : currentState.keySet()) {
-            for(String current: currentState.get(next).keySet()){
+        catch (IOException e) {
+            System.err.println("Cannot create result files.\n" + e.getMessage());
+            return "";
+        }
+        finally {
+            for (Path path : new Path[]{exactFile, beamFile}) {
                 try {
-                    // if we find one that's better, update best probability
-                    if (currentState.get(next).get(current) > currentState.get(bestNextTag).get(bestCurrentTag)) {
-                        bestNextTag = next;
-                        bestCurrentTag = current;
+                    if (path != null) {
+                        Files.deleteIfExists(path);
                     }
-                } catch (NullPointerException e) {
-                    bestNextTag = next;
-                    bestCurrentTag = current;
+                }
+                catch (IOException e) {
+                    System.err.println("Cannot delete file.\n" + e.getMessage());
                 }
             }
         }
+    }
 
-
-        /*
-         * for observation i, for each state, what was the previous state at observation i-1 that produced the
-         * best score upon transition and observation
-         */
-
-        String decodedTags = ""; // list with tags
-
-        // start at best tag found previously, march down to first state
-        String nextTag = bestNextTag;
-        String currentTag = bestCurrentTag;
-        decodedTags = " " + nextTag;
-
-        // go through all states, starting from last one
-        for (int i = backTrace.size() - 1; i > 1; i--) {
-            // add to string
-            decodedTags = " " + currentTag + decodedTags;
-
-            String temp = currentTag;
-            currentTag = backTrace.get(i).get(nextTag).get(currentTag);
-            nextTag = temp;
-
-        }
-
-        decodedTags = decodedTags.substring(1);
-
-        return decodedTags;
+    /**
+     * Tag a file with the scalar and the Vector API max-plus updates, and compare both
+     * @param fileName to "decode" or tag
+     * @return a string with both times and the discrepancies between the two results
+     */
+    public String maxPlusReport(String fileName){
+        return MaxPlus.report(fileName, this::ViterbiDecoding, this::discrepancies);
     }
 
     /**
@@ -422,181 +433,47 @@ public class SudiEC {
      */
 
     public ArrayList<Map<String, String>> predictNext(String sentence) {
-        //List that contains at every index a map with all possible tags the word at that index could have and each tag's probability as the value
-        List<Map<String, Map<String, String>>> backTrace = new ArrayList<>();
-
-        // add first state, start of the sentence #
-        // current state keeps track of the element at the last index of states list, initially # start
-        Map<String, Map<String, Double>> currentState = new HashMap<>();
-        currentState.put("#", new HashMap<>());
-        currentState.get("#").put("@", 0.0);
-
-        Map<String, Map<String, String>> currentTrace = new HashMap<>();
-        currentTrace.put("#", new HashMap<>());
-        currentTrace.get("#").put("@", "@");
-        backTrace.add(currentTrace);
-
         sentence = sentence.toLowerCase();
         String[] words = sentence.split(" ");
 
-        for (String word : words) {
-
-            // for the next word in the sentence, find all possible states with their corresponding probabilities
-            Map<String, Map<String, Double>> nextState = new HashMap<>();
-            Map<String, Map<String, String>> nextTrace = new HashMap<>();
-
-            // for each of the tags in current determine the tags where they can transition to
-            for (String current : currentState.keySet()) {
-
-                for(String previous : currentTrace.get(current).keySet()) {
-
-                    // score in the current state, used to compute next score
-                    double currentScore = currentState.get(current).get(previous);
-
-
-                    if (pairToNextMap.get(previous).containsKey(current)) {
-                        // loop through all next tags where the current state can transition to
-
-                        for (String next : pairsFrequency.get(current).keySet()) {
-
-                            double transScore = getTransitionScore(previous, current, next);
-                            // probability that the word is of type next tag
-                            double observation = getObservationProbability(word, next);
-                            // compute next score upon transition and observation
-                            double nextScore = currentScore+transScore+observation;
-
-                            // only consider next tag if next state had not seen it before or if it's probability,
-                            // coming from a different current tag, is greater than the probability seen before.
-                            if (!nextState.containsKey(next)) {
-                                // put inside the map at next state with best probability seen so far, or only probability
-                                nextState.put(next, new HashMap<>());
-                                nextState.get(next).put(current, nextScore);
-                                // backtrack: next comes from current
-                                nextTrace.put(next, new HashMap<>());
-                                nextTrace.get(next).put(current, previous);
-                            }
-                            else if(!nextState.get(next).containsKey(current)||nextScore > nextState.get(next).get(current)){
-                                nextState.get(next).put(current, nextScore);
-
-                                nextTrace.get(next).put(current, previous);
-                            }
-                        }
-                    } else if (pairsFrequency.containsKey(current)) {
-
-                        for (String next : pairsFrequency.get(current).keySet()) {
-                            // probability of transitioning from current tag to next tag
-                            double transScore = getTransitionScore(previous, current, next);
-                            // probability that the word is of type next tag
-                            double observation = getObservationProbability(word, next);
-                            // compute next score upon transition and observation
-                            double nextScore = currentScore + transScore + observation;
-
-                            // only consider next tag if next state had not seen it before or if it's probability,
-                            // coming from a different current tag, is greater than the probability seen before.
-                            if (!nextState.containsKey(next)) {
-                                // put inside the map at next state with best probability seen so far, or only probability
-                                nextState.put(next, new HashMap<>());
-                                nextState.get(next).put(current, nextScore);
-                                // backtrack: next comes from current
-                                nextTrace.put(next, new HashMap<>());
-                                nextTrace.get(next).put(current, previous);
-                            }
-                            else if(!nextState.get(next).containsKey(current)||nextScore > nextState.get(next).get(current)){
-                                nextState.get(next).put(current, nextScore);
-
-                                nextTrace.get(next).put(current, previous);
-                            }
-                        }
-                    }
-                }
-            }
-
-            backTrace.add(nextTrace);
-
-            // advance through the words by changing pointer to current
-            currentState = nextState;
-            currentTrace = nextTrace;
-        }
-
-        // keep a map of the best words we can predict and their scores
-        Map<String, Double> predictedWords = new HashMap<>();
-        // keep a map with the tags used for this predicted words
-        Map<String, String> predictedWordsTag = new HashMap<>();
-
-        // loop through last state to find best prediction word
-        for (String current : currentState.keySet()) {
-
-            for(String previous : currentTrace.get(current).keySet()) {
-                // get the current score
-                double currentScore = currentState.get(current).get(previous);
-
-                if(pairsFrequency.containsKey(current)) {
-                    // for every possible next tag we could have
-                    for (String next : pairsFrequency.get(current).keySet()) {
-
-                        // for every word we have seen so far
-                        for (String predictedWord : observationsMap.keySet()) {
-
-                            // if this word has been found withe the tag we are analysing
-
-                            if (observationsMap.get(predictedWord).containsKey(next)) {
-
-                                // calculate it's current score
-                                double transScore = getTransitionScore(previous, current, next);
-
-                                // it's observational probability should be really low
-                                double observation = getObservationProbability(predictedWord, next);
-                                double nextScore = currentScore + transScore + observation;
-
-                                // if we have already seen this word before
-                                if (predictedWords.containsKey(predictedWord)) {
-                                    // if the tag we are using for the word, calculates a bigger score, replace it in the maps
-                                    if (predictedWords.get(predictedWord) < nextScore) {
-                                        predictedWords.put(predictedWord, nextScore);
-                                        predictedWordsTag.put(predictedWord, next);
-                                    }
-                                }
-                                // if we haven't seen the word before
-                                else {
-                                    // just place it in the map
-                                    predictedWords.put(predictedWord, nextScore);
-                                    predictedWordsTag.put(predictedWord, next);
-                                }
-                            }
-                        }
-                    }
-                }
-                else{
-                    System.out.println(current);
-                }
+        // follow the viterbi encoding up to the end of the sentence over the compiled tables
+        if (model == null) {
+            compile();
+        }
+        int numTags = model.numTags();
+        int numAlive = TrigramDecoder.forward(model, trigrams, sentence, pruneTags, TrigramDecoder.EXACT);
+        DecoderWorkspace workspace = DecoderWorkspace.get();
+        double[] currentState = workspace.currentPairs;
+        int[] alive = workspace.alive;
+
+        // now that we have arrived at the end of the sentence, find the best score of reaching every tag next
+        double[] tagScores = new double[numTags];
+        Arrays.fill(tagScores, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < numAlive; i++) {
+            int current = alive[i] / numTags;
+            int previous = alive[i] % numTags;
+            double currentScore = currentState[alive[i]];
+
+            // for every next tag seen after current
+            int[] followers = trigrams.successors[current];
+            for (int k = 0; k < followers.length; k++) {
+                int next = followers[k];
+                tagScores[next] = Math.max(tagScores[next], currentScore + trigrams.successorScore(previous, current, k));
             }
         }
 
-        // create a priority queue to see which predicted words give out the best scores
-        PriorityQueue<String> pq = new PriorityQueue<>(new Comparator<String>() {
-            @Override
-            // add them to the pq depending on their scores (decreasing order (largest at index 0)
-            public int compare(String o1, String o2) {
-                if (predictedWords.get(o1) < predictedWords.get(o2)) {return 1;}
-                else if (predictedWords.get(o1) > predictedWords.get(o2)) {return -1; }
-                else { return 0;}
-            }
-        });
-
-        // add all of the predicted words into the priority queue
-        for (String predictions: predictedWords.keySet()) {
-            pq.add(predictions);
+        // the best words over all next tags, read from the words of every tag sorted by observation score
+        if (wordIndex == null || wordIndex.model != model) {
+            wordIndex = new TagWordIndex(model, observationsMap);
         }
+        Map<String, String> predictedWordsTag = new HashMap<>();
+        List<String> predictedWords = wordIndex.topWords(tagScores, 30, predictedWordsTag);
 
         // make a array list that holds a map of the top 30 words and their tags
         ArrayList<Map<String, String>> result = new ArrayList<>();
-
-        // if priority queue is smaller than 30 words, only add those
-        int maxNumber = Math.min(30, pq.size());
-
-        for (int i = 0; i < maxNumber; i++) {
+        for (int i = 0; i < predictedWords.size(); i++) {
             result.add(i, new HashMap<>());
-            String word = pq.remove();
+            String word = predictedWords.get(i);
             if (!word.equals(words[words.length-1])) {
                 result.get(i).put(word, predictedWordsTag.get(word));
             }
@@ -619,10 +496,10 @@ public class SudiEC {
         // allow user input
         Scanner scan = new Scanner(System.in);
         System.out.println("\nEnter your sentence: ");
-        String s = scan.nextLine();
 
-        // while the user does not want to quit
-        while (!s.equals("q")) {
+        // while the user does not want to quit, or until the input ends
+        String s;
+        while (scan.hasNextLine() && !(s = scan.nextLine()).equals("q")) {
 
             if(s.startsWith("t ")) {
                 // split the tags and words into a String Array
@@ -632,12 +509,12 @@ public class SudiEC {
                 String[] words = s.split(" ");
 
                 // create a resulting string
-                String result = "";
+                StringBuilder result = new StringBuilder();
 
                 // for every word and tag
                 for (int i = 0; i < words.length; i++) {
                     // add it to the result string
-                    result += words[i] + "/" + tags[i] + " ";
+                    result.append(words[i]).append("/").append(tags[i]).append(" ");
                 }
 
                 System.out.println(result);
@@ -649,9 +526,7 @@ public class SudiEC {
                 System.out.println(predictNext(sentence));
             }
             // ask for more user input
-            scan = new Scanner(System.in);
             System.out.println("\nEnter your sentence: ");
-            s = scan.nextLine();
         }
 
         // if the user quit the game
@@ -664,66 +539,44 @@ public class SudiEC {
      * @return a string describing the number of different tags in both files and the total number of words
      */
     public String discrepancies(String fileName1, String fileName2){
-        BufferedReader input1;
-        BufferedReader input2;
-
         String result = "";
         int numOfDiscrepancies = 0;
         int totalNumber = 0;
 
-        // Open the file, if possible
-        try {
-            input1 = new BufferedReader(new FileReader(fileName1));
-            input2 = new BufferedReader(new FileReader(fileName2));
-        }
-        catch (FileNotFoundException e) {
-            System.err.println("Cannot open file.\n" + e.getMessage());
-            return result;
-        }
-        // read files if possible
-        try {
+        // open both files and read them, both are closed whatever happens
+        try (CorpusReader input1 = CorpusReader.open(fileName1);
+             CorpusReader input2 = CorpusReader.open(fileName2)) {
 
             // read every line in both file
-            String sentenceTags1;
-            String sentenceTags2;
-            while (((sentenceTags1 = input1.readLine()) != null)&&((sentenceTags2 = input2.readLine()) != null)) {
+            while (input1.nextLine() && input2.nextLine()) {
 
-                // get the tags in every file
-                String[] firstTags =  sentenceTags1.split(" ");
-                String[] secondTags =  sentenceTags2.split(" ");
+                // get the tags in every file, compared in place without making Strings
+                int numFirstTags = input1.split();
+                int numSecondTags = input2.split();
 
                 // loop through tags and if you find one that doesn't match, increase the discrepancies count
                 int index = 0;
-                while(index<Math.min(firstTags.length, secondTags.length)){
+                while(index<Math.min(numFirstTags, numSecondTags)){
                     totalNumber += 1;
-                    if(!(firstTags[index].equals(secondTags[index]))){
+                    if(!input1.sameToken(index, input2, index)){
                         numOfDiscrepancies += 1;
                     }
                     index++;
                 }
 
                 // make sure they both have the same number of tags
-                if(firstTags.length<secondTags.length){
-                    numOfDiscrepancies += secondTags.length-firstTags.length;
+                if(numFirstTags<numSecondTags){
+                    numOfDiscrepancies += numSecondTags-numFirstTags;
                 }
-                if(firstTags.length>secondTags.length){
-                    numOfDiscrepancies += firstTags.length-secondTags.length;
+                if(numFirstTags>numSecondTags){
+                    numOfDiscrepancies += numFirstTags-numSecondTags;
                 }
 
             }
-
         }
         catch (IOException e) {
             System.err.println("IO error while reading.\n" + e.getMessage());
-        }
-
-        // Close both files, if possible
-        try {
-            input1.close();
-            input2.close();
-        }
-        catch (IOException e) {
-            System.err.println("Cannot close file.\n" + e.getMessage());
+            return result;
         }
 
         result = "Found "+numOfDiscrepancies+" discrepancies out of "+totalNumber+" total words.";
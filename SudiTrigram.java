@@ -25,6 +25,15 @@ public class SudiTrigram {
     // map matching a word with all its possible tags and the amount of times it has been seen with that tag
     public Map<String, Map<String, Integer>> observationsMap;
 
+    // log probabilities precomputed from the counts above, rebuilt by compile() after training
+    public DenseModel model;
+
+    // when true, decoding only expands the tags a known word was seen with, or the open class tags for unknown words
+    public boolean pruneTags = false;
+
+    // number of threads trainMachine counts with and determineTags decodes with, 1 does everything on the calling thread
+    public int workers = 1;
+
     /**
      *  Constructor no parameters
      */
@@ -40,76 +49,77 @@ public class SudiTrigram {
      * @param tagFileName File with parts of speech for corresponding words
      */
     public void trainMachine(String originalFileName, String tagFileName){
-        BufferedReader input1;
-        BufferedReader input2;
+        // the counts are about to change, so the compiled log probabilities are no longer valid
+        model = null;
 
-        // Open both files, if possible
-        try {
-            input1 = new BufferedReader(new FileReader(originalFileName));
-            input2 = new BufferedReader(new FileReader(tagFileName));
-        }
-        catch (FileNotFoundException e) {
-            System.err.println("Cannot open file.\n" + e.getMessage());
-            return;
-        }
         // try reading both files
         try {
             // insert a start vertex indicating the beginning of a sentence
             tagProbabilityGraph.insertVertex("#");
             sentenceNumPassingThrough.put("#", 0);
 
-            String words;       // words read from original file
-            String states;      // tags read from parts of speech file
-            while ((words = input1.readLine())!= null&&(states = input2.readLine())!= null) {
-                String[] partsOfSpeech = states.split(" ");
-                String[] correspondingWords = words.split(" ");
-
-                // for every sentence start with the start of sentence indicator (#)
-                String current = "#";
-                // increase # for the number of sentences seen
-                sentenceNumPassingThrough.put(current, sentenceNumPassingThrough.get(current)+1);
-
-                // loop through words and corresponding parts of speech in a sentence
-                int i = 0;
-                while(i<partsOfSpeech.length){
-                    // get a word and its corresponding tag
-                    String tag = partsOfSpeech[i];
-                    String word = correspondingWords[i].toLowerCase();
-
-                    // if the tag has never been seen before, add it to the graph
-                    if(!tagProbabilityGraph.hasVertex(tag)){
-                        tagProbabilityGraph.insertVertex(tag);
-                        sentenceNumPassingThrough.put(tag, 0);
-                    }
+            if (workers > 1) {
+                // count ranges of lines on separate threads, then merge them in order, which gives the same counts
+                List<ShardedTrainer.Shard> shards = ShardedTrainer.count(originalFileName, tagFileName, workers, false);
+                ShardedTrainer.mergeInto(shards, tagProbabilityGraph, sentenceNumPassingThrough, observationsMap);
+            }
+            else {
+                // only the single threaded count reads the files here, every line is split in place
+                // and tokens are interned straight from the mapped files
+                try (CorpusReader input1 = CorpusReader.open(originalFileName);
+                     CorpusReader input2 = CorpusReader.open(tagFileName)) {
+                    while (input1.nextLine() && input2.nextLine()) {
+                        int numTags = input2.split();
+                        input1.split();
+
+                        // for every sentence start with the start of sentence indicator (#)
+                        String current = "#";
+                        // increase # for the number of sentences seen
+                        sentenceNumPassingThrough.put(current, sentenceNumPassingThrough.get(current)+1);
+
+                        // loop through words and corresponding parts of speech in a sentence
+                        int i = 0;
+                        while(i<numTags){
+                            // get a word and its corresponding tag
+                            String tag = input2.token(i, false);
+                            String word = input1.token(i, true);
+
+                            // if the tag has never been seen before, add it to the graph
+                            if(!tagProbabilityGraph.hasVertex(tag)){
+                                tagProbabilityGraph.insertVertex(tag);
+                                sentenceNumPassingThrough.put(tag, 0);
+                            }
 
-                    // increment the count of times a vertex has been seen by one
-                    sentenceNumPassingThrough.put(tag, sentenceNumPassingThrough.get(tag)+1);
+                            // increment the count of times a vertex has been seen by one
+                            sentenceNumPassingThrough.put(tag, sentenceNumPassingThrough.get(tag)+1);
 
-                    // if there wasn't a connection between current tag and next tag, add a connection with frequency 1
-                    if(!tagProbabilityGraph.hasEdge(current, tag)){
-                        tagProbabilityGraph.insertDirected(current, tag, 1);
-                    }
-                    // else increment the frequency of transitioning from word to another by 1
-                    else {
-                        int label = tagProbabilityGraph.getLabel(current, tag) + 1;
-                        tagProbabilityGraph.removeDirected(current, tag);
-                        tagProbabilityGraph.insertDirected(current, tag, label);
-                    }
+                            // if there wasn't a connection between current tag and next tag, add a connection with frequency 1
+                            if(!tagProbabilityGraph.hasEdge(current, tag)){
+                                tagProbabilityGraph.insertDirected(current, tag, 1);
+                            }
+                            // else increment the frequency of transitioning from word to another by 1
+                            else {
+                                int label = tagProbabilityGraph.getLabel(current, tag) + 1;
+                                tagProbabilityGraph.removeDirected(current, tag);
+                                tagProbabilityGraph.insertDirected(current, tag, label);
+                            }
 
-                    // if the word hadn't already been seen, add it to observations
-                    if(!observationsMap.containsKey(word)){
-                        observationsMap.put(word, new HashMap<>());
-                    }
-                    // if the word hadn't already been seen with this tag, add the taag to it's map of possible tags
-                    if(!observationsMap.get(word).containsKey(tag)){
-                        observationsMap.get(word).put(tag, 0);
-                    }
-                    // increment the frequency by which the word has been seen with this tag by 1
-                    observationsMap.get(word).put(tag, observationsMap.get(word).get(tag) + 1);
+                            // if the word hadn't already been seen, add it to observations
+                            if(!observationsMap.containsKey(word)){
+                                observationsMap.put(word, new HashMap<>());
+                            }
+                            // if the word hadn't already been seen with this tag, add the taag to it's map of possible tags
+                            if(!observationsMap.get(word).containsKey(tag)){
+                                observationsMap.get(word).put(tag, 0);
+                            }
+                            // increment the frequency by which the word has been seen with this tag by 1
+                            observationsMap.get(word).put(tag, observationsMap.get(word).get(tag) + 1);
 
-                    // advance through other words in the sentence
-                    current = tag;
-                    i ++;
+                            // advance through other words in the sentence
+                            current = tag;
+                            i ++;
+                        }
+                    }
                 }
             }
         }
@@ -117,14 +127,18 @@ public class SudiTrigram {
             System.err.println("IO error while reading.\n" + e.getMessage());
         }
 
-        // Close both files, if possible
-        try {
-            input1.close();
-            input2.close();
-        }
-        catch (IOException e) {
-            System.err.println("Cannot close file.\n" + e.getMessage());
-        }
+        // precompute every log probability once, counts don't change after training
+        compile();
+    }
+
+    /**
+     * Precompute the log probabilities of every transition and observation seen while training
+     * Must be called again if the graph or the maps are modified
+     * @return the compiled model, also kept in the model field
+     */
+    public DenseModel compile(){
+        model = DenseModel.fromGraph(tagProbabilityGraph, sentenceNumPassingThrough, observationsMap, "#");
+        return model;
     }
 
     /**
@@ -134,15 +148,17 @@ public class SudiTrigram {
      * @return probability that tag2 follows tag1
      */
     public double getTransitionProbability(String tag1, String tag2){
-        // check if part of speech 1 can transition to part of speech 2 according to training files
-        if(tagProbabilityGraph.hasEdge(tag1, tag2)) {
-            // how many times does tag 2 comes after tag 1 compared to how many times tag 1 appears at all
-            return Math.log(((double)(tagProbabilityGraph.getLabel(tag1, tag2))) / ((double) (sentenceNumPassingThrough.get(tag1))));
+        // read the log probabilities precomputed after training
+        if (model == null) {
+            compile();
         }
-        else{
+        int from = model.tagId(tag1);
+        int to = model.tagId(tag2);
+        if (from == -1 || to == -1) {
             // no chance that tag 2 comes after tag 1, according to training files
-            return -100.0;
+            return DenseModel.UNSEEN;
         }
+        return model.transitionScore(from, to);
     }
 
     /**
@@ -151,12 +167,15 @@ public class SudiTrigram {
      * @return probability that a given word in a sentence is of type tag
      */
     public double getObservationProbability(String word, String tag){
-        if(observationsMap.containsKey(word)&&observationsMap.get(word).containsKey(tag)){
-            return Math.log((double)(observationsMap.get(word).get(tag))/(double)(sentenceNumPassingThrough.get(tag)));
+        // read the log probabilities precomputed after training
+        if (model == null) {
+            compile();
         }
-        else{
-            return -100.0;
+        int tagId = model.tagId(tag);
+        if (tagId == -1) {
+            return DenseModel.UNSEEN;
         }
+        return model.observationScore(word, tagId);
     }
 
     /**
@@ -194,13 +213,22 @@ public class SudiTrigram {
         }
 
         try {
-            // read every line in a file, corresponding to a sentence
-            String sentence;
-            while ((sentence = input.readLine()) != null) {
-                // calls method that determines tags on a given sentence
-                String decodedTags = ViterbiDecoding(sentence);
-                // write to output file
-                output.write(decodedTags+"\n");
+            if (workers > 1) {
+                // freeze the counts once up front, the workers only read the model
+                if (model == null) {
+                    compile();
+                }
+                BatchTagger.tag(input, output, this::ViterbiDecoding, workers);
+            }
+            else {
+                // read every line in a file, corresponding to a sentence
+                String sentence;
+                while ((sentence = input.readLine()) != null) {
+                    // calls method that determines tags on a given sentence
+                    String decodedTags = ViterbiDecoding(sentence);
+                    // write to output file
+                    output.write(decodedTags+"\n");
+                }
             }
         }
         catch (IOException e) {
@@ -230,104 +258,11 @@ public class SudiTrigram {
      */
 
     public String ViterbiDecoding(String sentence){
-        //List that contains at every index a map with all possible tags the word at that index could have and each tag's probability as the value
-        List<Map<String, Double>> states = new ArrayList<>();
-        //List that contains at every index a map with all possible tags the word at that index+1 could have had and where they came from
-        List<Map<String, String>> backTrack = new ArrayList<>();
-
-        // add first state, start of the sentence #
-        // current state keeps track of the element at the last index of states list, initially # start
-        Map<String, Double> currentState = new HashMap<>();
-        currentState.put("#", 0.0);
-        states.add(currentState);
-
-        sentence = sentence.toLowerCase();
-
-        String[] words = sentence.split(" ");
-        for (String word : words) {
-            // for the next word in the sentence, find all possible states with their corresponding probabilities
-            Map<String, Double> nextState = new HashMap<>();
-            // keep track of the current state tags where all tags in this next state came from
-            Map<String, String> stateBackTrack = new HashMap<>();
-
-            // for each of the tags in current determine the tags where they can transition to
-            for (String current : currentState.keySet()) {
-
-                // score in the current state, used to compute next score
-                double currentScore = currentState.get(current);
-
-                // loop through all next tags where the current state can transition to
-                for (String next : tagProbabilityGraph.outNeighbors(current)) {
-
-                    // probability of transitioning from current tag to next tag
-                    double transScore = getTransitionProbability(current, next);
-                    // probability that the word is of type next tag
-                    double observation = getObservationProbability(word, next);
-                    // compute next score upon transition and observation
-                    double nextScore = currentScore + transScore + observation;
-
-                    // only consider next tag if next state had not seen it before or if it's probability,
-                    // coming from a different current tag, is greater than the probability seen before.
-                    if (!nextState.containsKey(next)||nextScore > nextState.get(next)){
-                        // put inside the map at next state with best probability seen so far, or only probability
-                        nextState.put(next, nextScore);
-                        // backtrack: next comes from current
-                        stateBackTrack.put(next, current);
-                    }
-                }
-            }
-
-            // consider the entire state, and the entire state's backtracking
-            states.add(nextState);
-            backTrack.add(stateBackTrack);
-
-            // advance through the words by changing pointer to current
-            currentState = nextState;
-        }
-
-        /*
-         * Back Tracking on entire sentence:
-         *
-         * 1st find out what the best probability is on the last state
-         * Then, loop through all states and find out which path produced the best probability last state
-         */
-        // on last state, we don't know what the tag with the best probability is
-        String bestProbabilityTag = "";
-
-        // loop through last state to find best probability tag
-        for (String tag : currentState.keySet()) {
-            // if first time, instantiate to first tag in last state (try, catch)
-            try {
-                // if we find one that's better, update best probability
-                if (currentState.get(tag) > currentState.get(bestProbabilityTag)) {
-                    bestProbabilityTag = tag;
-                }
-            } catch (NullPointerException e) {
-                // first time--> start with first possible tag
-                bestProbabilityTag = tag;
-            }
-        }
-
-        /*
-         * for observation i, for each state, what was the previous state at observation i-1 that produced the
-         * best score upon transition and observation
-         */
-
-        String decodedTags = ""; // list with tags
-
-        // start at best tag found previously, march down to first state
-        String nextTag = bestProbabilityTag;
-
-        // go through all states, starting from last one
-        for (int i = states.size() - 1; i > 0; i--) {
-            // add to string
-            decodedTags = " " + nextTag + decodedTags;
-            nextTag = backTrack.get(i-1).get(nextTag);
+        // make sure the log probabilities have been precomputed
+        if (model == null) {
+            compile();
         }
-
-        decodedTags = decodedTags.substring(1);
-
-        return decodedTags;
+        return BigramDecoder.decode(model, sentence, pruneTags);
     }
 
     /**
@@ -525,8 +460,8 @@ public class SudiTrigram {
      * @return a string describing the number of different tags in both files and the total number of words
      */
     public String discrepancies(String fileName1, String fileName2){
-        BufferedReader input1;
-        BufferedReader input2;
+        CorpusReader input1;
+        CorpusReader input2;
 
         String result = "";
         int numOfDiscrepancies = 0;
@@ -534,10 +469,10 @@ public class SudiTrigram {
 
         // Open the file, if possible
         try {
-            input1 = new BufferedReader(new FileReader(fileName1));
-            input2 = new BufferedReader(new FileReader(fileName2));
+            input1 = CorpusReader.open(fileName1);
+            input2 = CorpusReader.open(fileName2);
         }
-        catch (FileNotFoundException e) {
+        catch (IOException e) {
             System.err.println("Cannot open file.\n" + e.getMessage());
             return result;
         }
@@ -545,30 +480,28 @@ public class SudiTrigram {
         try {
 
             // read every line in both file
-            String sentenceTags1;
-            String sentenceTags2;
-            while (((sentenceTags1 = input1.readLine()) != null)&&((sentenceTags2 = input2.readLine()) != null)) {
+            while (input1.nextLine() && input2.nextLine()) {
 
-                // get the tags in every file
-                String[] firstTags =  sentenceTags1.split(" ");
-                String[] secondTags =  sentenceTags2.split(" ");
+                // get the tags in every file, compared in place without making Strings
+                int numFirstTags = input1.split();
+                int numSecondTags = input2.split();
 
                 // loop through tags and if you find one that doesn't match, increase the discrepancies count
                 int index = 0;
-                while(index<Math.min(firstTags.length, secondTags.length)){
+                while(index<Math.min(numFirstTags, numSecondTags)){
                     totalNumber += 1;
-                    if(!(firstTags[index].equals(secondTags[index]))){
+                    if(!input1.sameToken(index, input2, index)){
                         numOfDiscrepancies += 1;
                     }
                     index++;
                 }
 
                 // make sure they both have the same number of tags
-                if(firstTags.length<secondTags.length){
-                    numOfDiscrepancies += secondTags.length-firstTags.length;
+                if(numFirstTags<numSecondTags){
+                    numOfDiscrepancies += numSecondTags-numFirstTags;
                 }
-                if(firstTags.length>secondTags.length){
-                    numOfDiscrepancies += firstTags.length-secondTags.length;
+                if(numFirstTags>numSecondTags){
+                    numOfDiscrepancies += numFirstTags-numSecondTags;
                 }
 
             }
@@ -0,0 +1,112 @@
+import java.util.*;
+
+/**
+ * Inverted index from every tag to the words seen with it, sorted by decreasing observation log probability,
+ * so predicting the next word of a sentence only reads the best few words of every tag instead of the whole vocabulary
+ * Built for one model snapshot, and rebuilt when the model changes
+ */
+
+public class TagWordIndex {
+    // snapshot the scores were read from
+    public final TaggerModel model;
+
+    // for every tag id, the words seen with it and their observation log probabilities, best first
+    private final String[][] words;
+    private final double[][] scores;
+
+    /**
+     * Where the merge is in the list of one tag
+     */
+    private static class Cursor {
+        final int tag;
+        final double tagScore;
+        int position = 0;
+
+        Cursor(int tag, double tagScore){
+            this.tag = tag;
+            this.tagScore = tagScore;
+        }
+    }
+
+    /**
+     * @param model snapshot to read the observation log probabilities from
+     * @param observations map matching a word with the amount of times it has been seen with every tag
+     */
+    public TagWordIndex(TaggerModel model, Map<String, Map<String, Integer>> observations){
+        this.model = model;
+        int numTags = model.numTags();
+
+        // gather the words of every tag
+        List<List<String>> tagWords = new ArrayList<>();
+        for (int tag = 0; tag < numTags; tag++) {
+            tagWords.add(new ArrayList<>());
+        }
+        for (String word : observations.keySet()) {
+            for (String tag : observations.get(word).keySet()) {
+                int tagId = model.tagId(tag);
+                if (tagId != -1) {
+                    tagWords.get(tagId).add(word);
+                }
+            }
+        }
+
+        // sort them by score, best first
+        words = new String[numTags][];
+        scores = new double[numTags][];
+        for (int tag = 0; tag < numTags; tag++) {
+            Map<String, Double> wordScores = new HashMap<>();
+            for (String word : tagWords.get(tag)) {
+                wordScores.put(word, model.observationScore(word, tag));
+            }
+            String[] sorted = tagWords.get(tag).toArray(new String[0]);
+            Arrays.sort(sorted, (a, b) -> Double.compare(wordScores.get(b), wordScores.get(a)));
+            words[tag] = sorted;
+            scores[tag] = new double[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                scores[tag][i] = wordScores.get(sorted[i]);
+            }
+        }
+    }
+
+    /**
+     * Find the best words to come next, a word scores the best tagScores[tag] + observation log probability over its tags
+     * The lists of every tag are merged best first, so the first time a word comes out is with its best tag,
+     * and the merge stops as soon as k words are found
+     * @param tagScores for every tag id, best score of reaching it next, negative infinity if it can't be reached
+     * @param k number of words wanted
+     * @param predictedTags map to fill with the best tag of every word found
+     * @return at most k words, best first
+     */
+    public List<String> topWords(double[] tagScores, int k, Map<String, String> predictedTags){
+        PriorityQueue<Cursor> queue = new PriorityQueue<>((a, b) -> Double.compare(score(b), score(a)));
+        for (int tag = 0; tag < tagScores.length; tag++) {
+            if (tagScores[tag] != Double.NEGATIVE_INFINITY && words[tag].length > 0) {
+                queue.add(new Cursor(tag, tagScores[tag]));
+            }
+        }
+
+        List<String> best = new ArrayList<>();
+        while (best.size() < k && !queue.isEmpty()) {
+            Cursor cursor = queue.poll();
+            String word = words[cursor.tag][cursor.position];
+            // a word already found came out earlier with a better tag
+            if (!predictedTags.containsKey(word)) {
+                predictedTags.put(word, model.tagName(cursor.tag));
+                best.add(word);
+            }
+            cursor.position++;
+            if (cursor.position < words[cursor.tag].length) {
+                queue.add(cursor);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param cursor where the merge is in the list of a tag
+     * @return score of the word the cursor is on
+     */
+    private double score(Cursor cursor){
+        return cursor.tagScore + scores[cursor.tag][cursor.position];
+    }
+}
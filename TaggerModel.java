@@ -0,0 +1,76 @@
+/**
+ * Read-only, int-indexed view of a trained bigram tagger, which the decoders run on
+ * Unseen transitions are negative infinity so a max over them never picks one
+ */
+
+public interface TaggerModel {
+    /**
+     * @return number of tags, ids go from 0 to numTags() - 1
+     */
+    int numTags();
+
+    /**
+     * @param id of a tag
+     * @return name of the tag
+     */
+    String tagName(int id);
+
+    /**
+     * @param tag name of a tag
+     * @return id of the tag, or -1 if it was never seen while training
+     */
+    int tagId(String tag);
+
+    /**
+     * @return id of the start of sentence tag
+     */
+    int startTag();
+
+    /**
+     * @param from id of the tag coming from
+     * @param to id of the tag going to
+     * @return log probability that to follows from, negative infinity if it never did while training
+     */
+    double transition(int from, int to);
+
+    /**
+     * @param from id of the tag coming from
+     * @param to id of the tag going to
+     * @return log probability that to follows from, or DenseModel.UNSEEN if it never did while training
+     */
+    double transitionScore(int from, int to);
+
+    /**
+     * @param word lower case word
+     * @param tag id of a tag
+     * @return log probability that the word is of type tag, or DenseModel.UNSEEN if it never was while training
+     */
+    double observationScore(String word, int tag);
+
+    /**
+     * Fill an array with the observation score of a word for every tag
+     * @param word lower case word
+     * @param scores array of length numTags() to fill
+     */
+    void observationScores(String word, double[] scores);
+
+    /**
+     * Fill an array with the observation score of a word for every tag, reading the word out of a sentence
+     * @param sentence lower case sentence holding the word
+     * @param start index of the first character of the word
+     * @param end index after the last character of the word
+     * @param scores array of length numTags() to fill
+     */
+    void observationScores(String sentence, int start, int end, double[] scores);
+
+    /**
+     * Tags worth expanding for a word when pruning: the tags it was seen with while training,
+     * or the open class tags if it was never seen
+     * @param sentence lower case sentence holding the word
+     * @param start index of the first character of the word
+     * @param end index after the last character of the word
+     * @param candidates array of length numTags() to fill with tag ids, in increasing order
+     * @return number of tag ids written to candidates
+     */
+    int candidateTags(String sentence, int start, int end, int[] candidates);
+}
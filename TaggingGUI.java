@@ -4,9 +4,13 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 public class TaggingGUI extends DrawingGUI {
     private static final int width = 1000, height = 650;        // setup: size of the "world" (window)
@@ -28,6 +32,18 @@ public class TaggingGUI extends DrawingGUI {
 
     private ArrayList<Map<String, String>> predictions;         // what are the best predictions based on the incomplete sentence
 
+    private static final Path modelFile = Paths.get("PS5/brown-train.model");  // saved model, trained once and loaded after that
+    private volatile Sudi tagger;                               // model shared by every search, null until it's loaded
+    private int loadProgress = 0;                               // how much of the model is loaded, out of 100
+    private boolean searching = false;                          // is a search being decoded in the background
+    private int searchNumber = 0;                               // number of the last search, older results are dropped
+    private SwingWorker<Void, Void> inFlight;                   // search being decoded, cancelled when a newer one starts
+
+    private static final int liveDelay = 30;                    // quiet time after a key press before tagging what was typed, in milliseconds
+    private Timer liveTimer;                                    // fires once typing pauses for liveDelay
+    private boolean liveResults = false;                        // are tags and predictions of what is being typed shown
+    private String taggedSentence = "";                         // sentence the tags and predictions were found for
+
     public TaggingGUI() {
 
         super("Tagging Game", width, height); //set up graphics "world"
@@ -35,6 +51,13 @@ public class TaggingGUI extends DrawingGUI {
         // create the tags to meaning map
         tagMeanings("PS5/tagMeaning.txt");
 
+        // tag what is being typed once typing pauses, restarted by every key press
+        liveTimer = new Timer(liveDelay, event -> startLiveSearch());
+        liveTimer.setRepeats(false);
+
+        // load or train the model once, in the background so the window can be drawn in the meantime
+        loadTagger();
+
         // Timer drives the animations
         setTimerDelay(delay);
         startTimer();
@@ -90,6 +113,140 @@ public class TaggingGUI extends DrawingGUI {
         }
     }
 
+    /**
+     * Load the saved model on a background worker, or train it and save it if there isn't one yet
+     * The progress of the worker is drawn until the model is ready
+     */
+    public void loadTagger() {
+        SwingWorker<Sudi, Void> loader = new SwingWorker<Sudi, Void>() {
+            @Override
+            protected Sudi doInBackground() {
+                setProgress(5);
+                Sudi loaded = Files.exists(modelFile) ? Sudi.load(modelFile) : null;
+                if (loaded == null) {
+                    // no saved model, or one that can't be read, so train it and save it for the next time
+                    setProgress(10);
+                    loaded = new Sudi();
+                    loaded.trainMachine("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+                    setProgress(70);
+                    loaded.save(modelFile);
+                }
+
+                // searches are often a sentence with one word more than the last one
+                loaded.prefixCache = new PrefixCache();
+                setProgress(100);
+                return loaded;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    tagger = get();
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    System.err.println("Cannot load model.\n" + e.getMessage());
+                }
+                // tag whatever was typed while the model was loading
+                if (typing) {
+                    liveTimer.restart();
+                }
+                repaint();
+            }
+        };
+
+        // progress changes are sent on the event thread
+        loader.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                loadProgress = (Integer) event.getNewValue();
+                repaint();
+            }
+        });
+        loader.execute();
+    }
+
+    /**
+     * Find the tags and predictions of a sentence on a background worker, and show them once they are found
+     * A search still in flight is cancelled, its results would be stale
+     * @param sentence      // the sentence in the search field
+     * @param live          // whether the sentence is still being typed, then the search button wasn't clicked
+     */
+    public void startSearch(String sentence, boolean live) {
+        cancelSearch();
+        Sudi shared = tagger;
+        int number = searchNumber;
+        searching = !live;
+
+        inFlight = new SwingWorker<Void, Void>() {
+            private String foundTags;
+            private ArrayList<Map<String, String>> foundPredictions;
+
+            @Override
+            protected Void doInBackground() {
+                // the forward pass of the sentence typed so far is cached, so this only decodes the new words
+                foundTags = shared.ViterbiDecoding(sentence);
+                if (!isCancelled()) {
+                    foundPredictions = shared.predictNext(sentence);
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                // a newer search was started in the meantime, or we went back to the home screen
+                if (isCancelled() || number != searchNumber) {
+                    return;
+                }
+                searching = false;
+                try {
+                    get();
+                    tags = foundTags;
+                    predictions = foundPredictions;
+                    taggedSentence = sentence;
+                    if (live) {
+                        liveResults = true;
+                    }
+                    else {
+                        clickedSearch = true;
+                    }
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    System.err.println("Cannot tag sentence.\n" + e.getMessage());
+                }
+                repaint();
+            }
+        };
+        inFlight.execute();
+    }
+
+    /**
+     * Tag what has been typed so far, called once typing pauses
+     */
+    public void startLiveSearch() {
+        if (!typing || clickedSearch || tagger == null) {
+            return;
+        }
+        // nothing to tag yet
+        if (searchField.trim().isEmpty()) {
+            cancelSearch();
+            liveResults = false;
+            repaint();
+            return;
+        }
+        startSearch(searchField, true);
+    }
+
+    /**
+     * Drop the search in flight, if there is one, its results won't be shown
+     */
+    public void cancelSearch() {
+        searchNumber++;
+        searching = false;
+        if (inFlight != null) {
+            inFlight.cancel(true);
+            inFlight = null;
+        }
+    }
+
     /**
      * DrawingGUI method, draws the game interface
      */
@@ -213,7 +370,7 @@ public class TaggingGUI extends DrawingGUI {
         }
 
         // if we are on the tagging screen and we clicked the search button
-        if (taggingScreen && clickedSearch) {
+        if (taggingScreen && (clickedSearch || liveResults)) {
             Font simpleText = new Font("Helvetica Nue", Font.BOLD, 25);
             g.setFont(simpleText);
             g.setColor(new Color(0, 0, 0));
@@ -232,7 +389,7 @@ public class TaggingGUI extends DrawingGUI {
             int y = 300;
 
             String[] tagResults = tags.split(" ");
-            String[] words = searchField.split(" ");
+            String[] words = taggedSentence.split(" ");
 
             // of the amount of tags does not equal the amount of words
             if (tagResults.length != words.length) {
@@ -275,7 +432,7 @@ public class TaggingGUI extends DrawingGUI {
         }
 
         // if we are on the predicting screen and we clicked the search button
-        if (predictingScreen && clickedSearch) {
+        if (predictingScreen && (clickedSearch || liveResults)) {
 
             Font simpleText = new Font("Helvetica Nue", Font.BOLD, 25);
             g.setFont(simpleText);
@@ -340,6 +497,28 @@ public class TaggingGUI extends DrawingGUI {
                 }
             }
         }
+
+        // while the model is loading, draw how far along it is
+        if (tagger == null) {
+            Font simpleText = new Font("Helvetica Nue", Font.BOLD, 20);
+            g.setFont(simpleText);
+            g.setColor(new Color(184, 184, 184));
+            g.fillRect(width - 320, height - 50, 300, 20);
+            g.setColor(new Color(13, 76, 108));
+            g.fillRect(width - 320, height - 50, 3 * loadProgress, 20);
+            g.setColor(new Color(0, 0, 0));
+            String loading = "Loading model... " + loadProgress + "%";
+            g.drawString(loading, width - 320 - 10 - g.getFontMetrics().stringWidth(loading), height - 33);
+        }
+
+        // while a search is being decoded, keep the sentence and say so
+        if ((taggingScreen || predictingScreen) && searching) {
+            Font simpleText = new Font("Helvetica Nue", Font.BOLD, 25);
+            g.setFont(simpleText);
+            g.setColor(new Color(0, 0, 0));
+            g.drawString(maxSearchField, 210, 230);
+            g.drawString("Tagging...", 210, 300);
+        }
     }
 
     /**
@@ -378,16 +557,18 @@ public class TaggingGUI extends DrawingGUI {
             // location of the search button
             if (x > 780 && x < 780 + 150) {
                 if (y > 195 && y < 245) {
-                    // start tagging the sentence
-                    clickedSearch = true;
+                    // the model isn't loaded yet, keep typing
+                    if (tagger == null) {
+                        return;
+                    }
                     // stop typing
                     typing = false;
 
                     // if we clicked search, find the tags and predictions of the current search field word
-                    Sudi tagging = new Sudi();
-                    tagging.trainMachine("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
-                    tags = tagging.ViterbiDecoding(searchField);
-                    predictions = tagging.predictNext(searchField);
+                    // away from the event thread, they are shown once they are found
+                    liveTimer.stop();
+                    liveResults = false;
+                    startSearch(searchField, false);
                     repaint();
                 }
             }
@@ -400,8 +581,10 @@ public class TaggingGUI extends DrawingGUI {
                 if (y > 190 && y < 270) {
                     // clear the last search field
                     searchField = "";
-                    // stop tagging
+                    // stop tagging, and forget the search in progress
                     clickedSearch = false;
+                    liveResults = false;
+                    cancelSearch();
                     // mark that we are typing
                     typing = true;
                     // reset the image
@@ -430,6 +613,9 @@ public class TaggingGUI extends DrawingGUI {
                     search = false;
                     typing = false;
                     clickedSearch = false;
+                    liveResults = false;
+                    liveTimer.stop();
+                    cancelSearch();
                     searchField = "";
                     repaint();
                 }
@@ -457,6 +643,9 @@ public class TaggingGUI extends DrawingGUI {
                 }
                 // repaint the string
                 repaint();
+
+                // tag what is being typed once typing pauses
+                liveTimer.restart();
             }
         }
     }
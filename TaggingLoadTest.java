@@ -0,0 +1,87 @@
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for TaggingServer on localhost: a number of clients post sentences from a file as fast as they
+ * get answers, for a number of seconds, then the client side throughput and the server stats are printed
+ *
+ * Usage: java TaggingLoadTest [clients] [seconds] [sentences per request] [sentences file] [port]
+ * Without a running server on the port, one is started in this process with a model trained on brown
+ */
+
+public class TaggingLoadTest {
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int perRequest = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        String fileName = args.length > 3 ? args[3] : "PS5/brown-test-sentences.txt";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 8080;
+
+        List<String> lines = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(clients)).build();
+        URI tag = URI.create("http://localhost:" + port + "/tag");
+        URI stats = URI.create("http://localhost:" + port + "/stats");
+
+        // start a server here if none is running
+        TaggingServer server = null;
+        try {
+            client.send(HttpRequest.newBuilder(stats).build(), HttpResponse.BodyHandlers.ofString());
+        }
+        catch (IOException e) {
+            Sudi sudi = new Sudi();
+            sudi.trainMachine("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+            server = new TaggingServer(sudi.compile(), false, port, clients, Runtime.getRuntime().availableProcessors());
+            server.start();
+        }
+
+        // every client posts the next sentences of the file until the time is up
+        LongAdder requests = new LongAdder();
+        LongAdder failures = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        ExecutorService threads = Executors.newFixedThreadPool(clients);
+        for (int c = 0; c < clients; c++) {
+            int first = c * perRequest;
+            threads.execute(() -> {
+                int next = first;
+                while (System.nanoTime() < deadline) {
+                    StringBuilder body = new StringBuilder();
+                    for (int i = 0; i < perRequest; i++) {
+                        body.append(lines.get(next++ % lines.size())).append('\n');
+                    }
+                    try {
+                        HttpResponse<String> response = client.send(
+                                HttpRequest.newBuilder(tag).POST(HttpRequest.BodyPublishers.ofString(body.toString())).build(),
+                                HttpResponse.BodyHandlers.ofString());
+                        if (response.statusCode() == 200) {
+                            requests.increment();
+                        }
+                        else {
+                            failures.increment();
+                        }
+                    }
+                    catch (IOException | InterruptedException e) {
+                        failures.increment();
+                    }
+                }
+            });
+        }
+        threads.shutdown();
+        threads.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+        System.out.println(clients + " clients, " + perRequest + " sentences per request, " + seconds + " s: "
+                + requests.sum() + " requests answered, " + failures.sum() + " failed, "
+                + String.format("%.1f", requests.sum() / (double) seconds) + " requests per second");
+        System.out.print(client.send(HttpRequest.newBuilder(stats).build(), HttpResponse.BodyHandlers.ofString()).body());
+
+        if (server != null) {
+            server.stop();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,311 @@
+import com.sun.net.httpserver.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local HTTP service tagging sentences with one shared compiled model, for other services to call
+ *
+ *   POST /tag     body is one sentence per line, a single sentence or a batch, the response has the tags of every line
+ *   GET  /stats   requests, sentences, batches, throughput and latency since the server started
+ *
+ * Request threads don't decode, they queue their sentences and wait. Decoder threads take whatever is already queued,
+ * up to MAX_BATCH sentences, without waiting for more. A batch is decoded one sentence after the other, so it only
+ * saves a decoder waking up per sentence, each decoder thread reuses its own workspace whether batching or not
+ * The queue holds at most MAX_QUEUE sentences, a request that doesn't fit is answered 503 instead of piling up
+ * The model is never modified, so every decoder reads it without locking
+ *
+ * Usage: java TaggingServer [port] [model file saved by Sudi.save]
+ */
+
+public class TaggingServer {
+    // most sentences decoded in one batch
+    public static final int MAX_BATCH = 64;
+
+    // most sentences waiting to be decoded, from all requests
+    public static final int MAX_QUEUE = 4096;
+
+    // longest a request waits for the tags of all its sentences, in milliseconds
+    public static final long TAG_TIMEOUT_MILLIS = 30000;
+
+    // latencies kept for the percentiles in the stats
+    private static final int LATENCY_WINDOW = 10000;
+
+    /**
+     * A sentence waiting for its tags
+     */
+    private static class Pending {
+        final String sentence;
+        final CompletableFuture<String> tags = new CompletableFuture<>();
+
+        Pending(String sentence){
+            this.sentence = sentence;
+        }
+    }
+
+    private final TaggerModel model;
+    private final boolean prune;
+    private final HttpServer server;
+    private final ExecutorService requestThreads;
+    private final ExecutorService decoderThreads;
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(MAX_QUEUE);
+
+    // counters for the stats
+    private final long started = System.nanoTime();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder sentences = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    // latency of the last requests in nanoseconds, a ring of LATENCY_WINDOW
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long numLatencies = 0;
+
+    /**
+     * @param model compiled or memory-mapped model, shared by every decoder
+     * @param prune whether to only expand the tags a known word was seen with
+     * @param port port to listen on, on localhost, 0 for any free port
+     * @param requestThreadCount number of threads reading requests and waiting for their tags
+     * @param decoderCount number of threads decoding batches
+     * @throws IOException if the port can't be bound
+     */
+    public TaggingServer(TaggerModel model, boolean prune, int port, int requestThreadCount, int decoderCount) throws IOException {
+        this.model = model;
+        this.prune = prune;
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/tag", this::handleTag);
+        server.createContext("/stats", this::handleStats);
+
+        requestThreads = Executors.newFixedThreadPool(requestThreadCount);
+        server.setExecutor(requestThreads);
+        decoderThreads = Executors.newFixedThreadPool(decoderCount);
+        for (int i = 0; i < decoderCount; i++) {
+            decoderThreads.execute(this::decodeBatches);
+        }
+    }
+
+    /**
+     * Start answering requests
+     */
+    public void start(){
+        server.start();
+    }
+
+    /**
+     * Stop answering requests and stop every thread, sentences still queued are dropped
+     */
+    public void stop(){
+        server.stop(0);
+        requestThreads.shutdownNow();
+        decoderThreads.shutdownNow();
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int port(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Decoder loop: wait for a sentence, take the ones queued behind it into a batch and decode them all
+     * Sentences whose request already gave up are skipped
+     * Whatever a sentence throws only fails that sentence, the loop goes on with the next ones
+     */
+    private void decodeBatches(){
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+
+                    int decoded = 0;
+                    for (Pending pending : batch) {
+                        // timed out or refused, nobody is waiting for the tags
+                        if (pending.tags.isDone()) {
+                            continue;
+                        }
+                        try {
+                            pending.tags.complete(BigramDecoder.decode(model, pending.sentence, prune));
+                        }
+                        catch (Throwable e) {
+                            pending.tags.completeExceptionally(e);
+                        }
+                        decoded++;
+                    }
+                    batches.increment();
+                    sentences.add(decoded);
+                }
+                finally {
+                    // never leave a request waiting on a sentence taken off the queue, even when stopped halfway
+                    for (Pending pending : batch) {
+                        pending.tags.completeExceptionally(new IllegalStateException("Decoder stopped."));
+                    }
+                    batch.clear();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * POST /tag, one sentence per line in, one line of tags per sentence out
+     * @param exchange the request
+     */
+    private void handleTag(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        List<Pending> pendings = Collections.emptyList();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "Send sentences with POST, one per line.\n");
+                return;
+            }
+
+            // queue every sentence of the request, then wait for all of them
+            pendings = new ArrayList<>();
+            BufferedReader body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = body.readLine()) != null) {
+                Pending pending = new Pending(line);
+                pendings.add(pending);
+                if (!queue.offer(pending)) {
+                    respond(exchange, 503, "Too many sentences waiting, try again later.\n");
+                    return;
+                }
+            }
+
+            // one deadline for the whole request, however many sentences it has
+            long deadline = System.nanoTime() + TAG_TIMEOUT_MILLIS * 1_000_000;
+            StringBuilder response = new StringBuilder();
+            for (Pending pending : pendings) {
+                response.append(pending.tags.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)).append('\n');
+            }
+            respond(exchange, 200, response.toString());
+            requests.increment();
+            recordLatency(System.nanoTime() - start);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Server is stopping.\n");
+        }
+        catch (ExecutionException e) {
+            respond(exchange, 500, "Cannot tag sentence.\n" + e.getCause().getMessage() + "\n");
+        }
+        catch (TimeoutException e) {
+            respond(exchange, 503, "Tagging took too long.\n");
+        }
+        finally {
+            // whatever of the request is still queued when it gives up is skipped by the decoders
+            for (Pending pending : pendings) {
+                pending.tags.cancel(false);
+            }
+            exchange.close();
+        }
+    }
+
+    /**
+     * GET /stats, counters since the server started and percentiles of the latest request latencies
+     * @param exchange the request
+     */
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange, 200, stats());
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return a string with the counters, throughput and latency percentiles, one per line
+     */
+    public String stats(){
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long numBatches = batches.sum();
+        long numSentences = sentences.sum();
+
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = Arrays.copyOf(latencies, (int) Math.min(numLatencies, LATENCY_WINDOW));
+        }
+        Arrays.sort(sorted);
+
+        return "requests " + requests.sum() + "\n"
+                + "sentences " + numSentences + "\n"
+                + "batches " + numBatches + "\n"
+                + String.format("average batch %.2f%n", numBatches == 0 ? 0.0 : (double) numSentences / numBatches)
+                + String.format("sentences per second %.1f%n", numSentences / seconds)
+                + "latency ms p50 " + percentile(sorted, 50) + " p90 " + percentile(sorted, 90)
+                + " p99 " + percentile(sorted, 99) + " max " + percentile(sorted, 100) + "\n";
+    }
+
+    /**
+     * @param nanos latency of a request
+     */
+    private void recordLatency(long nanos){
+        synchronized (latencies) {
+            latencies[(int) (numLatencies++ % LATENCY_WINDOW)] = nanos;
+        }
+    }
+
+    /**
+     * @param sorted latencies in nanoseconds, sorted
+     * @param percent percentile wanted
+     * @return the percentile in milliseconds, 0 if there are no latencies
+     */
+    private static String percentile(long[] sorted, int percent){
+        if (sorted.length == 0) {
+            return "0";
+        }
+        int i = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percent / 100.0) - 1);
+        return String.format("%.3f", sorted[Math.max(i, 0)] / 1e6);
+    }
+
+    /**
+     * @param exchange the request
+     * @param status HTTP status
+     * @param text body of the response
+     */
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+
+        // load the saved model, or train on brown
+        Sudi sudi;
+        if (args.length > 1) {
+            sudi = Sudi.load(Paths.get(args[1]));
+            if (sudi == null) {
+                return;
+            }
+        }
+        else {
+            sudi = new Sudi();
+            sudi.trainMachine("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+        }
+
+        try {
+            int processors = Runtime.getRuntime().availableProcessors();
+            TaggingServer server = new TaggingServer(sudi.compile(), false, port, 64, processors);
+            server.start();
+            System.out.println("Tagging on http://localhost:" + server.port() + "/tag, stats on http://localhost:" + server.port() + "/stats");
+        }
+        catch (IOException e) {
+            System.err.println("Cannot start server.\n" + e.getMessage());
+        }
+    }
+}
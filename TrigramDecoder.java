@@ -0,0 +1,367 @@
+import java.util.*;
+
+/**
+ * Second order Viterbi decoding over int-indexed tables, where a state is a pair of tags (current, previous)
+ * kept in a flat numTags * numTags score array, and backpointers are shorts holding the tag before previous
+ *
+ * Only the reachable states of a column are expanded. In beam mode only the beamWidth best of them are kept,
+ * which gives up exactness for a much smaller search on long sentences
+ * Every array comes from the calling thread's DecoderWorkspace, like BigramDecoder
+ */
+
+public class TrigramDecoder {
+    // beam width meaning every reachable state is kept, exact Viterbi
+    public static final int EXACT = 0;
+
+    /**
+     * @param model compiled bigram and observation model, its tag ids index the trigram table
+     * @param trigrams trigram scores with the bigram backoff resolved
+     * @param sentence a string of words to be tagged
+     * @return a string with a tag for each corresponding word in the sentence
+     */
+    public static String decode(DenseModel model, TrigramTable trigrams, String sentence){
+        return decode(model, trigrams, sentence, false, EXACT);
+    }
+
+    /**
+     * @param model compiled bigram and observation model, its tag ids index the trigram table
+     * @param trigrams trigram scores with the bigram backoff resolved
+     * @param sentence a string of words to be tagged
+     * @param prune whether to only expand the tags a known word was seen with, or the open class tags for unknown words
+     * @param beamWidth number of states kept per word, or EXACT to keep every reachable state
+     * @return a string with a tag for each corresponding word in the sentence
+     */
+    public static String decode(DenseModel model, TrigramTable trigrams, String sentence, boolean prune, int beamWidth){
+        int numTags = model.tags.length;
+
+        sentence = sentence.toLowerCase();
+        int numAlive = forward(model, trigrams, sentence, prune, beamWidth);
+
+        DecoderWorkspace workspace = DecoderWorkspace.get();
+        int numWords = workspace.numWords;
+        double[] currentState = workspace.currentPairs;
+        int[] alive = workspace.alive;
+        short[][] backTrace = workspace.pairTrace;
+
+        /*
+         * Back Tracking on entire sentence:
+         *
+         * 1st find out what the best probability pair is on the last state
+         * Then, march back through the backtrace, every pair gives the tag before it
+         */
+        int bestState = alive[0];
+        for (int i = 1; i < numAlive; i++) {
+            if (currentState[alive[i]] > currentState[bestState]) {
+                bestState = alive[i];
+            }
+        }
+
+        int[] path = workspace.path;
+        int nextTag = bestState / numTags;
+        int currentTag = bestState % numTags;
+        for (int w = numWords - 1; w >= 0; w--) {
+            path[w] = nextTag;
+            int previousTag = backTrace[w][nextTag * numTags + currentTag];
+            nextTag = currentTag;
+            currentTag = previousTag;
+        }
+
+        // write the tags in order into the reused buffer
+        StringBuilder decodedTags = workspace.result;
+        decodedTags.setLength(0);
+        for (int w = 0; w < numWords; w++) {
+            if (w > 0) {
+                decodedTags.append(' ');
+            }
+            decodedTags.append(model.tags[path[w]]);
+        }
+
+        return decodedTags.toString();
+    }
+
+    /**
+     * Run the forward pass over a sentence in the calling thread's DecoderWorkspace
+     * The scores of the last column are left in its currentPairs, the reachable states in alive
+     * and the backpointers of every word in pairTrace
+     * @param model compiled bigram and observation model, its tag ids index the trigram table
+     * @param trigrams trigram scores with the bigram backoff resolved
+     * @param sentence a lower case string of words
+     * @param prune whether to only expand the tags a known word was seen with, or the open class tags for unknown words
+     * @param beamWidth number of states kept per word, or EXACT to keep every reachable state
+     * @return number of reachable states in the last column, never 0
+     */
+    public static int forward(DenseModel model, TrigramTable trigrams, String sentence, boolean prune, int beamWidth){
+        int numTags = model.tags.length;
+        int numStates = numTags * numTags;
+
+        // find the words in place and make sure the workspace can hold the whole sentence
+        DecoderWorkspace workspace = DecoderWorkspace.get();
+        workspace.split(sentence);
+        int numWords = workspace.numWords;
+        workspace.ensurePairCapacity(numTags, numWords, beamWidth);
+
+        // score of every (current, previous) at index current * numTags + previous, negative infinity if it can't be reached
+        // current state starts at the start of the sentence, # preceded by @
+        double[] currentState = workspace.currentPairs;
+        double[] nextState = workspace.nextPairs;
+        Arrays.fill(currentState, 0, numStates, Double.NEGATIVE_INFINITY);
+
+        // reachable states of the current column, in increasing order
+        int[] alive = workspace.alive;
+        int numAlive = 1;
+        alive[0] = model.tagId("#") * numTags + model.tagId("@");
+        currentState[alive[0]] = 0.0;
+
+        // for every word and every (next, current), the tag before current on the best path
+        short[][] backTrace = workspace.pairTrace;
+
+        for (int w = 0; w < numWords; w++) {
+            int start = workspace.wordStarts[w];
+            int end = workspace.wordEnds[w];
+            model.observationScores(sentence, start, end, workspace.observations);
+            short[] nextTrace = backTrace[w];
+
+            // when pruning, only expand the candidate tags of the word, unless none of them can be reached
+            boolean reached = false;
+            if (prune) {
+                int numCandidates = model.candidateTags(sentence, start, end, workspace.candidates);
+                reached = expandCandidates(trigrams, currentState, alive, numAlive, nextState, nextTrace,
+                        workspace.observations, workspace.candidates, numCandidates);
+            }
+            if (!reached) {
+                expandAll(trigrams, currentState, alive, numAlive, nextState, nextTrace, workspace.observations,
+                        workspace.best, workspace.from);
+            }
+
+            // collect the reachable states of the new column, and cut them down to the beam
+            numAlive = 0;
+            for (int state = 0; state < numStates; state++) {
+                if (nextState[state] != Double.NEGATIVE_INFINITY) {
+                    alive[numAlive++] = state;
+                }
+            }
+            if (w < numWords - 1) {
+                numAlive = dropDeadEnds(trigrams, nextState, alive, numAlive);
+            }
+            if (numAlive == 0) {
+                throw new IllegalStateException("No tags can reach word " + (w + 1) + " of: " + sentence);
+            }
+            if (beamWidth > 0 && numAlive > beamWidth) {
+                numAlive = keepBest(nextState, alive, numAlive, workspace.beam, beamWidth);
+            }
+
+            // advance through the words by swapping current and next
+            double[] temp = currentState;
+            currentState = nextState;
+            nextState = temp;
+        }
+
+        // leave the last column where the caller looks for it
+        workspace.currentPairs = currentState;
+        workspace.nextPairs = nextState;
+        return numAlive;
+    }
+
+    /**
+     * Before the last word, a state whose tag was never followed by anything is a dead end, so it's dropped
+     * If every state is one, they are all kept, so the column is never left empty
+     * @param trigrams trigram scores with the bigram backoff resolved
+     * @param scores score of every state, the dropped ones are set to negative infinity
+     * @param alive reachable states, replaced by the kept states in increasing order
+     * @param numAlive number of states in alive
+     * @return number of states kept
+     */
+    private static int dropDeadEnds(TrigramTable trigrams, double[] scores, int[] alive, int numAlive){
+        int numTags = trigrams.numTags;
+        boolean anyFollowed = false;
+        for (int i = 0; i < numAlive && !anyFollowed; i++) {
+            anyFollowed = trigrams.successors[alive[i] / numTags].length > 0;
+        }
+        if (!anyFollowed) {
+            return numAlive;
+        }
+
+        int kept = 0;
+        for (int i = 0; i < numAlive; i++) {
+            int state = alive[i];
+            if (trigrams.successors[state / numTags].length == 0) {
+                scores[state] = Double.NEGATIVE_INFINITY;
+            }
+            else {
+                alive[kept++] = state;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Compute the best score of every (next, current) coming from any reachable (current, previous)
+     * @param trigrams trigram scores with the bigram backoff resolved
+     * @param currentState score of every (current, previous)
+     * @param alive reachable states of the current column
+     * @param numAlive number of states in alive
+     * @param nextState array to fill with the best score of every (next, current)
+     * @param nextTrace array to fill with the previous tag every (next, current) came from
+     * @param observations observation score of the word for every tag
+     * @param best array of numTags to work in
+     * @param from array of numTags to work in
+     */
+    private static void expandAll(TrigramTable trigrams, double[] currentState, int[] alive, int numAlive,
+                                  double[] nextState, short[] nextTrace, double[] observations, double[] best, int[] from){
+        int numTags = trigrams.numTags;
+        Arrays.fill(nextState, 0, numTags * numTags, Double.NEGATIVE_INFINITY);
+
+        // with a dense table, every (previous, current) has a full row over next, so each is one max-plus update
+        // into the best scores of current, which alive lists together and by increasing previous like the loop below
+        float[] dense = trigrams.denseScores();
+        if (dense != null) {
+            MaxPlus maxPlus = MaxPlus.get();
+            int i = 0;
+            while (i < numAlive) {
+                int current = alive[i] / numTags;
+                Arrays.fill(best, 0, numTags, Double.NEGATIVE_INFINITY);
+                for (; i < numAlive && alive[i] / numTags == current; i++) {
+                    int previous = alive[i] % numTags;
+                    maxPlus.update(currentState[alive[i]], dense, (previous * numTags + current) * numTags, observations,
+                            numTags, best, from, previous);
+                }
+
+                // copy the row of current into the column
+                for (int next = 0; next < numTags; next++) {
+                    if (best[next] != Double.NEGATIVE_INFINITY) {
+                        nextState[next * numTags + current] = best[next];
+                        nextTrace[next * numTags + current] = (short) from[next];
+                    }
+                }
+            }
+            return;
+        }
+
+        // for each of the reachable pairs determine the tags where they can transition to
+        for (int i = 0; i < numAlive; i++) {
+            int current = alive[i] / numTags;
+            int previous = alive[i] % numTags;
+
+            // score in the current state, used to compute next score
+            double currentScore = currentState[alive[i]];
+
+            // loop through all next tags where the current state can transition to
+            int[] followers = trigrams.successors[current];
+            for (int k = 0; k < followers.length; k++) {
+                int next = followers[k];
+                double nextScore = currentScore + trigrams.successorScore(previous, current, k) + observations[next];
+
+                // keep the best score seen so far for (next, current), and where it came from
+                int state = next * numTags + current;
+                if (nextScore > nextState[state]) {
+                    nextState[state] = nextScore;
+                    nextTrace[state] = (short) previous;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as expandAll, but only for some of the next tags
+     * @param trigrams trigram scores with the bigram backoff resolved
+     * @param currentState score of every (current, previous)
+     * @param alive reachable states of the current column
+     * @param numAlive number of states in alive
+     * @param nextState array to fill with the best score of every (next, current)
+     * @param nextTrace array to fill with the previous tag every (next, current) came from
+     * @param observations observation score of the word for every tag
+     * @param candidates ids of the next tags to expand
+     * @param numCandidates number of ids in candidates
+     * @return whether any of the candidates can be reached
+     */
+    private static boolean expandCandidates(TrigramTable trigrams, double[] currentState, int[] alive, int numAlive,
+                                            double[] nextState, short[] nextTrace, double[] observations,
+                                            int[] candidates, int numCandidates){
+        int numTags = trigrams.numTags;
+        Arrays.fill(nextState, 0, numTags * numTags, Double.NEGATIVE_INFINITY);
+
+        boolean reached = false;
+        for (int i = 0; i < numAlive; i++) {
+            int current = alive[i] / numTags;
+            int previous = alive[i] % numTags;
+            double currentScore = currentState[alive[i]];
+
+            for (int c = 0; c < numCandidates; c++) {
+                int next = candidates[c];
+                // candidates that never followed current can't be reached from this pair
+                float transScore = trigrams.transition(previous, current, next);
+                if (transScore == Float.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                double nextScore = currentScore + transScore + observations[next];
+
+                int state = next * numTags + current;
+                if (nextScore > nextState[state]) {
+                    nextState[state] = nextScore;
+                    nextTrace[state] = (short) previous;
+                    reached = true;
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Keep only the best states of a column, using a bounded min-heap so selecting them is O(n log beamWidth)
+     * The states that fall out of the beam are set to negative infinity
+     * @param scores score of every state
+     * @param alive reachable states, replaced by the kept states in increasing order
+     * @param numAlive number of states in alive
+     * @param beam heap of at least beamWidth to work in
+     * @param beamWidth number of states to keep
+     * @return number of states kept
+     */
+    private static int keepBest(double[] scores, int[] alive, int numAlive, int[] beam, int beamWidth){
+        int size = 0;
+        for (int i = 0; i < numAlive; i++) {
+            int state = alive[i];
+            if (size < beamWidth) {
+                // heap not full yet, sift the state up
+                int child = size++;
+                while (child > 0 && scores[beam[(child - 1) / 2]] > scores[state]) {
+                    beam[child] = beam[(child - 1) / 2];
+                    child = (child - 1) / 2;
+                }
+                beam[child] = state;
+            }
+            else if (scores[state] > scores[beam[0]]) {
+                // better than the worst state in the beam, replace it and sift down
+                int parent = 0;
+                while (true) {
+                    int child = 2 * parent + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && scores[beam[child + 1]] < scores[beam[child]]) {
+                        child++;
+                    }
+                    if (scores[beam[child]] >= scores[state]) {
+                        break;
+                    }
+                    beam[parent] = beam[child];
+                    parent = child;
+                }
+                beam[parent] = state;
+            }
+        }
+
+        // list the kept states in order and forget the ones that didn't make it
+        Arrays.sort(beam, 0, size);
+        int kept = 0;
+        for (int i = 0; i < numAlive; i++) {
+            int state = alive[i];
+            if (kept < size && beam[kept] == state) {
+                alive[kept++] = state;
+            }
+            else {
+                scores[state] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        return kept;
+    }
+}
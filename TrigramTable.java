@@ -0,0 +1,182 @@
+import java.util.*;
+
+/**
+ * Int-indexed store of second order transition log probabilities, with the backoff to the bigram
+ * already resolved, so the score of any (previous, current, next) is a single array read
+ *
+ * Only tags that were seen following current can be next. When most tags follow most tags the scores are
+ * kept in a dense numTags^3 array, otherwise each (previous, current) gets a row with one entry per follower of current
+ */
+
+public class TrigramTable {
+    // keep the table dense when at least this fraction of the tag pairs were seen while training
+    public static final double DENSE_FILL_RATIO = 0.25;
+
+    // number of tags, ids go from 0 to numTags - 1
+    public final int numTags;
+
+    // for every tag, the ids of the tags seen following it, in increasing order
+    public final int[][] successors;
+
+    // total number of (current, next) pairs seen while training
+    private final int numEdges;
+
+    // for every tag, how many (current, next) pairs come before its followers when all followers are laid end to end
+    private final int[] edgeStarts;
+
+    // dense scores indexed by (previous * numTags + current) * numTags + next, null if the table is sparse
+    private final float[] dense;
+
+    // sparse scores indexed by previous * numEdges + edgeStarts[current] + position of next in successors[current]
+    private final float[] sparse;
+
+    /**
+     * @param successors for every tag, the ids of the tags seen following it
+     * @param dense whether to lay the scores out as a dense tensor
+     */
+    private TrigramTable(int[][] successors, boolean dense){
+        this.numTags = successors.length;
+        this.successors = successors;
+
+        edgeStarts = new int[numTags];
+        int edges = 0;
+        for (int current = 0; current < numTags; current++) {
+            edgeStarts[current] = edges;
+            edges += successors[current].length;
+        }
+        numEdges = edges;
+
+        if (dense) {
+            this.dense = new float[numTags * numTags * numTags];
+            Arrays.fill(this.dense, Float.NEGATIVE_INFINITY);
+            this.sparse = null;
+        }
+        else {
+            this.dense = null;
+            this.sparse = new float[numTags * numEdges];
+        }
+    }
+
+    /**
+     * Resolve the score of every (previous, current, next) where next was seen following current:
+     * the trigram log probability if the trigram was seen, the bigram one otherwise
+     * @param bigrams compiled bigram model, its tag ids are reused
+     * @param trigramCounts map matching (previous, current) with the amount of times it was followed by every tag
+     * @param pairCounts map matching a tag with the amount of times it was followed by every other tag
+     * @return the resolved table
+     */
+    public static TrigramTable build(DenseModel bigrams, Map<String, Map<String, Map<String, Integer>>> trigramCounts,
+                                     Map<String, Map<String, Integer>> pairCounts){
+        int numTags = bigrams.tags.length;
+
+        // every tag that has a bigram score can follow current
+        int[][] successors = new int[numTags][];
+        int numEdges = 0;
+        for (int current = 0; current < numTags; current++) {
+            int count = 0;
+            int[] followers = new int[numTags];
+            for (int next = 0; next < numTags; next++) {
+                if (bigrams.transitions[current][next] != Double.NEGATIVE_INFINITY) {
+                    followers[count++] = next;
+                }
+            }
+            successors[current] = Arrays.copyOf(followers, count);
+            numEdges += count;
+        }
+
+        double fillRatio = (double) numEdges / ((double) numTags * numTags);
+        TrigramTable table = new TrigramTable(successors, fillRatio >= DENSE_FILL_RATIO);
+
+        // start every (previous, current, next) at the bigram score
+        for (int previous = 0; previous < numTags; previous++) {
+            for (int current = 0; current < numTags; current++) {
+                for (int k = 0; k < successors[current].length; k++) {
+                    table.set(previous, current, k, (float) bigrams.transitions[current][successors[current][k]]);
+                }
+            }
+        }
+
+        // overwrite with the trigram score where the trigram was seen
+        for (String previous : trigramCounts.keySet()) {
+            int previousId = bigrams.tagIds.get(previous);
+            for (String current : trigramCounts.get(previous).keySet()) {
+                int currentId = bigrams.tagIds.get(current);
+                double totalPreviousTagsSeen = pairCounts.get(previous).get(current);
+                Map<String, Integer> nextCounts = trigramCounts.get(previous).get(current);
+                for (String next : nextCounts.keySet()) {
+                    int k = Arrays.binarySearch(successors[currentId], bigrams.tagIds.get(next));
+                    table.set(previousId, currentId, k, (float) Math.log(((double) nextCounts.get(next)) / totalPreviousTagsSeen));
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @return whether the scores are laid out as a dense tensor
+     */
+    public boolean isDense(){
+        return dense != null;
+    }
+
+    /**
+     * @return dense scores indexed by (previous * numTags + current) * numTags + next, null if the table is sparse
+     * Meant for decoders that read whole rows at once, not to be modified
+     */
+    public float[] denseScores(){
+        return dense;
+    }
+
+    /**
+     * @param previous id of the tag two positions before next
+     * @param current id of the tag right before next
+     * @param k position of next in successors[current]
+     * @return log probability that successors[current][k] follows previous and current
+     */
+    public float successorScore(int previous, int current, int k){
+        if (dense != null) {
+            return dense[(previous * numTags + current) * numTags + successors[current][k]];
+        }
+        return sparse[previous * numEdges + edgeStarts[current] + k];
+    }
+
+    /**
+     * @param previous id of the tag two positions before next
+     * @param current id of the tag right before next
+     * @param next id of the tag going to
+     * @return log probability that next follows previous and current, negative infinity if next never followed current
+     */
+    public float transition(int previous, int current, int next){
+        if (dense != null) {
+            return dense[(previous * numTags + current) * numTags + next];
+        }
+        int k = Arrays.binarySearch(successors[current], next);
+        return k < 0 ? Float.NEGATIVE_INFINITY : sparse[previous * numEdges + edgeStarts[current] + k];
+    }
+
+    /**
+     * @param previous id of the tag two positions before next
+     * @param current id of the tag right before next
+     * @param next id of the tag going to
+     * @return log probability that next follows previous and current, or DenseModel.UNSEEN if next never followed current
+     */
+    public double transitionScore(int previous, int current, int next){
+        float score = transition(previous, current, next);
+        return score == Float.NEGATIVE_INFINITY ? DenseModel.UNSEEN : score;
+    }
+
+    /**
+     * @param previous id of the tag two positions before next
+     * @param current id of the tag right before next
+     * @param k position of next in successors[current]
+     * @param score log probability to store
+     */
+    private void set(int previous, int current, int k, float score){
+        if (dense != null) {
+            dense[(previous * numTags + current) * numTags + successors[current][k]] = score;
+        }
+        else {
+            sparse[previous * numEdges + edgeStarts[current] + k] = score;
+        }
+    }
+}
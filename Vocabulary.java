@@ -0,0 +1,167 @@
+import java.util.*;
+
+/**
+ * Interns words to consecutive int ids using an open addressing hash table of primitive arrays,
+ * so looking a word up never boxes anything
+ */
+
+public class Vocabulary {
+    // slot value for an empty slot in the table
+    private static final int EMPTY = -1;
+
+    // words indexed by their id
+    private String[] words;
+
+    // hash table of word ids, an empty slot holds EMPTY
+    private int[] slots;
+
+    // number of words interned so far
+    private int size;
+
+    /**
+     *  Constructor no parameters
+     */
+    public Vocabulary(){
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of words expected, so the table doesn't have to grow
+     */
+    public Vocabulary(int expectedSize){
+        words = new String[Math.max(expectedSize, 16)];
+        // keep the table at most half full
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 16) * 2 - 1) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+    }
+
+    /**
+     * @param word to look up
+     * @return id of the word, or -1 if it has never been interned
+     */
+    public int find(String word){
+        int mask = slots.length - 1;
+        int slot = mix(word.hashCode()) & mask;
+        // linear probing until the word or an empty slot is found
+        while (slots[slot] != EMPTY) {
+            if (words[slots[slot]].equals(word)) {
+                return slots[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Look up a word that is part of a longer text, without creating a String for it
+     * @param text text holding the word
+     * @param start index of the first character of the word
+     * @param end index after the last character of the word
+     * @return id of the word, or -1 if it has never been interned
+     */
+    public int find(String text, int start, int end){
+        // same hash as String.hashCode() of the word
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+
+        int length = end - start;
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] != EMPTY) {
+            String word = words[slots[slot]];
+            if (word.length() == length && word.regionMatches(0, text, start, length)) {
+                return slots[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param word to intern
+     * @return id of the word, giving it the next free id if it has never been seen
+     */
+    public int intern(String word){
+        int id = find(word);
+        if (id != -1) {
+            return id;
+        }
+
+        // grow both arrays before the table gets more than half full
+        if (size == words.length) {
+            words = Arrays.copyOf(words, size * 2);
+        }
+        if ((size + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+
+        id = size++;
+        words[id] = word;
+        insert(id);
+        return id;
+    }
+
+    /**
+     * @param id of an interned word
+     * @return the word with that id
+     */
+    public String word(int id){
+        return words[id];
+    }
+
+    /**
+     * @return number of words interned
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return rough number of bytes taken on the heap by the table and the words, assuming compressed references
+     */
+    public long approximateBytes(){
+        long bytes = 16 + 4L * words.length + 16 + 4L * slots.length;
+        for (int id = 0; id < size; id++) {
+            // String object, plus its byte array holding one byte per character for latin-1 words
+            bytes += 24 + 16 + words[id].length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Put an id in the first free slot for its word
+     * @param id of an interned word
+     */
+    private void insert(int id){
+        int mask = slots.length - 1;
+        int slot = mix(words[id].hashCode()) & mask;
+        while (slots[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = id;
+    }
+
+    /**
+     * @param capacity new number of slots, a power of two
+     */
+    private void rehash(int capacity){
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        for (int id = 0; id < size; id++) {
+            insert(id);
+        }
+    }
+
+    /**
+     * Spread the bits of a String hash code, since similar words have similar low bits
+     * @param hash hash code of a word
+     * @return mixed hash
+     */
+    static int mix(int hash){
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,125 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of ViterbiDecoding for Sudi, SudiEC and SudiTrigram, the baseline to judge decoder changes against
+ * Measures throughput and sampled latency for every tagger, on the simple and the brown model, for short to long
+ * sentences, with only known words or with a share of words never seen while training
+ * main() runs everything with the GC profiler, which adds the allocation rate per operation to the results
+ * JMH needs benchmarks in a package, and the taggers are in the default package, which can't be imported,
+ * so they are built and called through reflection, with a method handle for ViterbiDecoding
+ *
+ * Kept out of the top directory since it needs JMH, jmh/pom.xml builds it with the taggers, from the directory above:
+ *   mvn -f jmh/pom.xml package
+ *   java -jar jmh/target/benchmarks.jar jmh.DecoderBenchmark
+ * or, to pick benchmarks and parameters, the usual JMH command line:
+ *   java -jar jmh/target/benchmarks.jar jmh.DecoderBenchmark -p corpus=brown -prof gc
+ * Both read the corpora from PS5/, so run them from the directory that holds it
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    // number of different sentences decoded one after the other, so the branch predictor can't learn a single one
+    private static final int NUM_SENTENCES = 512;
+
+    @Param({"sudi", "ec", "trigram"})
+    public String tagger;
+
+    @Param({"simple", "brown"})
+    public String corpus;
+
+    // words per sentence
+    @Param({"5", "20", "60"})
+    public int length;
+
+    // percentage of the words replaced by words never seen while training
+    @Param({"0", "25"})
+    public int unknownPercent;
+
+    // ViterbiDecoding bound to the trained tagger
+    private MethodHandle decoder;
+    private String[] sentences;
+    private int next = 0;
+
+    /**
+     * Train the tagger once per trial and build the sentences to decode
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String trainSentences = "PS5/" + corpus + "-train-sentences.txt";
+        String trainTags = "PS5/" + corpus + "-train-tags.txt";
+
+        String className = tagger.equals("sudi") ? "Sudi" : tagger.equals("ec") ? "SudiEC" : "SudiTrigram";
+        Class<?> taggerClass = Class.forName(className);
+        Object instance = taggerClass.getDeclaredConstructor().newInstance();
+        taggerClass.getMethod("trainMachine", String.class, String.class).invoke(instance, trainSentences, trainTags);
+        taggerClass.getMethod("compile").invoke(instance);
+        decoder = MethodHandles.publicLookup()
+                .findVirtual(taggerClass, "ViterbiDecoding", MethodType.methodType(String.class, String.class))
+                .bindTo(instance);
+
+        // every training word in order, cut into sentences of the wanted length, so the words are all known
+        // and follow each other the way they do in real sentences
+        List<String> words = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(trainSentences), StandardCharsets.UTF_8)) {
+            words.addAll(Arrays.asList(line.split(" ")));
+        }
+
+        // the same sentences on every run
+        Random random = new Random(42);
+        sentences = new String[NUM_SENTENCES];
+        for (int s = 0; s < NUM_SENTENCES; s++) {
+            int start = random.nextInt(words.size());
+            StringBuilder sentence = new StringBuilder();
+            for (int w = 0; w < length; w++) {
+                if (w > 0) {
+                    sentence.append(' ');
+                }
+                if (random.nextInt(100) < unknownPercent) {
+                    sentence.append("unseen").append(random.nextInt(1000000));
+                }
+                else {
+                    sentence.append(words.get((start + w) % words.size()));
+                }
+            }
+            sentences[s] = sentence.toString();
+        }
+    }
+
+    /**
+     * @return the tags of the next sentence, returned so JMH consumes them
+     */
+    @Benchmark
+    public String viterbiDecoding() throws Throwable {
+        String sentence = sentences[next];
+        next = (next + 1) % NUM_SENTENCES;
+        return (String) decoder.invokeExact(sentence);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(DecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
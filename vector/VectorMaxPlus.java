@@ -0,0 +1,77 @@
+import jdk.incubator.vector.*;
+
+/**
+ * Max-plus update using the incubating Vector API, several entries of the row per instruction
+ * Gives exactly the same scores and sources as MaxPlus.Scalar, lanes are only compared within the same j
+ * Needs --add-modules jdk.incubator.vector to compile and run, so it is kept apart in vector/, MaxPlus only loads it by name
+ * Build it next to the other classes with: javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorMaxPlus.java
+ */
+
+public class VectorMaxPlus extends MaxPlus {
+    // widest double vectors the machine handles well, and int and float vectors with the same number of lanes
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.length() * 32));
+    private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.length() * 32));
+
+    @Override
+    public String name(){
+        return "vector";
+    }
+
+    @Override
+    public void update(double base, double[] row, int rowOffset, int length, double[] best, int[] from, int source){
+        DoubleVector baseVector = DoubleVector.broadcast(DOUBLES, base);
+        IntVector sourceVector = IntVector.broadcast(INTS, source);
+
+        int j = 0;
+        for (int upper = DOUBLES.loopBound(length); j < upper; j += DOUBLES.length()) {
+            DoubleVector score = baseVector.add(DoubleVector.fromArray(DOUBLES, row, rowOffset + j));
+            DoubleVector bestSoFar = DoubleVector.fromArray(DOUBLES, best, j);
+
+            // only the lanes where the score improves take it and the new source
+            VectorMask<Double> better = score.compare(VectorOperators.GT, bestSoFar);
+            if (better.anyTrue()) {
+                bestSoFar.blend(score, better).intoArray(best, j);
+                IntVector.fromArray(INTS, from, j).blend(sourceVector, better.cast(INTS)).intoArray(from, j);
+            }
+        }
+
+        // entries left over after the last full vector
+        for (; j < length; j++) {
+            double score = base + row[rowOffset + j];
+            if (score > best[j]) {
+                best[j] = score;
+                from[j] = source;
+            }
+        }
+    }
+
+    @Override
+    public void update(double base, float[] row, int rowOffset, double[] add, int length, double[] best, int[] from, int source){
+        DoubleVector baseVector = DoubleVector.broadcast(DOUBLES, base);
+        IntVector sourceVector = IntVector.broadcast(INTS, source);
+
+        int j = 0;
+        for (int upper = DOUBLES.loopBound(length); j < upper; j += DOUBLES.length()) {
+            // widen the floats of the row to doubles before adding, the same as the scalar version
+            DoubleVector rowScores = (DoubleVector) FloatVector.fromArray(FLOATS, row, rowOffset + j)
+                    .convertShape(VectorOperators.F2D, DOUBLES, 0);
+            DoubleVector score = baseVector.add(rowScores).add(DoubleVector.fromArray(DOUBLES, add, j));
+            DoubleVector bestSoFar = DoubleVector.fromArray(DOUBLES, best, j);
+
+            VectorMask<Double> better = score.compare(VectorOperators.GT, bestSoFar);
+            if (better.anyTrue()) {
+                bestSoFar.blend(score, better).intoArray(best, j);
+                IntVector.fromArray(INTS, from, j).blend(sourceVector, better.cast(INTS)).intoArray(from, j);
+            }
+        }
+
+        for (; j < length; j++) {
+            double score = base + row[rowOffset + j] + add[j];
+            if (score > best[j]) {
+                best[j] = score;
+                from[j] = source;
+            }
+        }
+    }
+}